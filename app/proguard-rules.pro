@@ -40,7 +40,7 @@
     void dnsResolved(eu.faircode.netguard.ResourceRecord);
     boolean isDomainBlocked(java.lang.String);
     int getUidQ(int, int, java.lang.String, int, java.lang.String, int);
-    eu.faircode.netguard.Allowed isAddressAllowed(eu.faircode.netguard.Packet);
+    void areAddressesAllowed(java.nio.ByteBuffer, int);
     void accountUsage(eu.faircode.netguard.Usage);
 }
 
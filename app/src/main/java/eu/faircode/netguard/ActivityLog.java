@@ -57,6 +57,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 
 public class ActivityLog extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
     private static final String TAG = "NetGuard.Log";
@@ -73,6 +74,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     private InetAddress vpn6 = null;
 
     private static final int REQUEST_PCAP = 1;
+    private static final int PCAP_HDR_SIZE = 24; // bytes, see struct pcap_hdr_s in netguard.h
 
     private DatabaseHelper.LogChangedListener listener = new DatabaseHelper.LogChangedListener() {
         @Override
@@ -381,7 +383,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
         // https://gist.github.com/granoeste/5574148
-        File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
+        File pcap_file = ServiceSinkhole.getPcapFile(this);
 
         boolean export = (getPackageManager().resolveActivity(getIntentPCAPDocument(), 0) != null);
 
@@ -404,7 +406,6 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        final File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
 
         switch (item.getItemId()) {
             case android.R.id.home:
@@ -487,13 +488,10 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
                         DatabaseHelper.getInstance(ActivityLog.this).clearLog(-1);
                         if (prefs.getBoolean("pcap", false)) {
                             ServiceSinkhole.setPcap(false, ActivityLog.this);
-                            if (pcap_file.exists() && !pcap_file.delete())
-                                Log.w(TAG, "Delete PCAP failed");
+                            ServiceSinkhole.deletePcapFiles(ActivityLog.this);
                             ServiceSinkhole.setPcap(true, ActivityLog.this);
-                        } else {
-                            if (pcap_file.exists() && !pcap_file.delete())
-                                Log.w(TAG, "Delete PCAP failed");
-                        }
+                        } else
+                            ServiceSinkhole.deletePcapFiles(ActivityLog.this);
                         return null;
                     }
 
@@ -566,7 +564,9 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
             intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
             intent.addCategory(Intent.CATEGORY_OPENABLE);
             intent.setType("application/octet-stream");
-            intent.putExtra(Intent.EXTRA_TITLE, "netguard_" + new SimpleDateFormat("yyyyMMdd").format(new Date().getTime()) + ".pcap");
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            String ext = (prefs.getBoolean("pcapng", false) ? ".pcapng" : ".pcap");
+            intent.putExtra(Intent.EXTRA_TITLE, "netguard_" + new SimpleDateFormat("yyyyMMdd").format(new Date().getTime()) + ext);
         }
         return intent;
     }
@@ -601,17 +601,29 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
                     Log.i(TAG, "Export PCAP URI=" + target);
                     out = getContentResolver().openOutputStream(target);
 
-                    File pcap = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
-                    in = new FileInputStream(pcap);
+                    // Concatenate rotated files, oldest first
+                    // A pcapng file can have multiple sections, a pcap file has one header only
+                    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ActivityLog.this);
+                    boolean pcapng = prefs.getBoolean("pcapng", false);
 
-                    int len;
                     long total = 0;
                     byte[] buf = new byte[4096];
-                    while ((len = in.read(buf)) > 0) {
-                        out.write(buf, 0, len);
-                        total += len;
+                    List<File> files = ServiceSinkhole.getPcapFiles(ActivityLog.this);
+                    for (int i = 0; i < files.size(); i++) {
+                        in = new FileInputStream(files.get(i));
+                        if (i > 0 && !pcapng && in.skip(PCAP_HDR_SIZE) != PCAP_HDR_SIZE)
+                            Log.w(TAG, "Empty PCAP file=" + files.get(i));
+
+                        int len;
+                        while ((len = in.read(buf)) > 0) {
+                            out.write(buf, 0, len);
+                            total += len;
+                        }
+
+                        in.close();
+                        in = null;
                     }
-                    Log.i(TAG, "Copied bytes=" + total);
+                    Log.i(TAG, "Copied files=" + files.size() + " bytes=" + total);
 
                     return null;
                 } catch (Throwable ex) {
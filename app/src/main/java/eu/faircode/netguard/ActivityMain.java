@@ -1235,6 +1235,10 @@ public class ActivityMain extends AppCompatActivity implements SharedPreferences
             try {
                 final File file = new File(getFilesDir(), "malware.txt");
                 new DownloadTask(this, new URL(MALWARE_URL), file, new DownloadTask.Listener() {
+                    @Override
+                    public void onDownloaded() {
+                    }
+
                     @Override
                     public void onCompleted() {
                         prefs.edit().putBoolean("filter", true).apply();
@@ -263,6 +263,11 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         // PCAP parameters
         screen.findPreference("pcap_record_size").setTitle(getString(R.string.setting_pcap_record_size, prefs.getString("pcap_record_size", "64")));
         screen.findPreference("pcap_file_size").setTitle(getString(R.string.setting_pcap_file_size, prefs.getString("pcap_file_size", "2")));
+        screen.findPreference("pcap_files").setTitle(getString(R.string.setting_pcap_files, prefs.getString("pcap_files", "1")));
+
+        // Packet batch
+        screen.findPreference("tun_batch").setTitle(getString(R.string.setting_tun_batch, prefs.getString("tun_batch", "32")));
+        screen.findPreference("tun_workers").setTitle(getString(R.string.setting_tun_workers, prefs.getString("tun_workers", "1")));
 
         // Watchdog
         screen.findPreference("watchdog").setTitle(getString(R.string.setting_watchdog, prefs.getString("watchdog", "0")));
@@ -375,6 +380,17 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
 
                     try {
                         new DownloadTask(ActivitySettings.this, new URL(hosts_url), tmp, new DownloadTask.Listener() {
+                            @Override
+                            public void onDownloaded() {
+                                // Renaming keeps the modification time the index is matched on
+                                // The index is a cache, which will be compiled on start if missing or stale
+                                try {
+                                    HostsIndex.compile(tmp, HostsIndex.getIndexFile(ActivitySettings.this));
+                                } catch (Throwable ex) {
+                                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                                }
+                            }
+
                             @Override
                             public void onCompleted() {
                                 if (hosts.exists())
@@ -646,6 +662,9 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         } else if ("use_hosts".equals(name))
             ServiceSinkhole.reload("changed " + name, this, false);
 
+        else if ("use_hosts_subdomains".equals(name))
+            ServiceSinkhole.reload("changed " + name, this, false);
+
         else if ("vpn4".equals(name)) {
             String vpn4 = prefs.getString(name, null);
             try {
@@ -745,21 +764,31 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
             getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_socks5_password, TextUtils.isEmpty(prefs.getString(name, "")) ? "-" : "*****"));
             ServiceSinkhole.reload("changed " + name, this, false);
 
-        } else if ("pcap_record_size".equals(name) || "pcap_file_size".equals(name)) {
+        } else if ("pcap_record_size".equals(name) || "pcap_file_size".equals(name) ||
+                "pcap_files".equals(name) || "pcapng".equals(name)) {
             if ("pcap_record_size".equals(name))
                 getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_pcap_record_size, prefs.getString(name, "64")));
-            else
+            else if ("pcap_file_size".equals(name))
                 getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_pcap_file_size, prefs.getString(name, "2")));
+            else if ("pcap_files".equals(name))
+                getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_pcap_files, prefs.getString(name, "1")));
 
             ServiceSinkhole.setPcap(false, this);
 
-            File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
-            if (pcap_file.exists() && !pcap_file.delete())
-                Log.w(TAG, "Delete PCAP failed");
+            // Existing files have another format or size
+            ServiceSinkhole.deletePcapFiles(this);
 
             if (prefs.getBoolean("pcap", false))
                 ServiceSinkhole.setPcap(true, this);
 
+        } else if ("tun_batch".equals(name)) {
+            getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_tun_batch, prefs.getString(name, "32")));
+            ServiceSinkhole.reload("changed " + name, this, false);
+
+        } else if ("tun_workers".equals(name)) {
+            getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_tun_workers, prefs.getString(name, "1")));
+            ServiceSinkhole.reload("changed " + name, this, false);
+
         } else if ("watchdog".equals(name)) {
             getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_watchdog, prefs.getString(name, "0")));
             ServiceSinkhole.reload("changed " + name, this, false);
@@ -1005,6 +1034,14 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                     }
                     Log.i(TAG, "Copied bytes=" + total);
 
+                    out.close();
+                    out = null;
+                    try {
+                        HostsIndex.compile(hosts, HostsIndex.getIndexFile(ActivitySettings.this));
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
+
                     return null;
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
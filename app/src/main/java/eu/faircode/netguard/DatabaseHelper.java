@@ -24,8 +24,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
@@ -36,10 +36,15 @@ import androidx.preference.PreferenceManager;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
@@ -58,6 +63,18 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     private static final Map<Integer, Long> mapUidHosts = new HashMap<>();
 
+    // Names per address, least recently used addresses are evicted
+    // Names are sorted and map to the uids which resolved them, an empty map means no name
+    // Changed with the write lock held and loaded with the read lock held
+    private static final int QNAME_CACHE = 1000; // addresses
+    private static final Map<String, TreeMap<String, Set<Integer>>> mapQName =
+            new LinkedHashMap<String, TreeMap<String, Set<Integer>>>(QNAME_CACHE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TreeMap<String, Set<Integer>>> eldest) {
+                    return (size() > QNAME_CACHE);
+                }
+            };
+
     private final static int MSG_LOG = 1;
     private final static int MSG_ACCESS = 2;
     private final static int MSG_FORWARD = 3;
@@ -67,6 +84,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private SharedPreferences prefs;
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 
+    // Compiled on first use, guarded by the write lock
+    private SQLiteStatement stmtInsertLog = null;
+    private SQLiteStatement stmtDeleteLogSyn = null;
+    private SQLiteStatement stmtUpdateAccess = null;
+    private SQLiteStatement stmtUpdateAccessBlock = null;
+    private SQLiteStatement stmtInsertAccess = null;
+    private SQLiteStatement stmtUpdateUsage = null;
+
     static {
         hthread = new HandlerThread("DatabaseHelper");
         hthread.start();
@@ -90,6 +115,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         synchronized (mapUidHosts) {
             mapUidHosts.clear();
         }
+        synchronized (mapQName) {
+            mapQName.clear();
+        }
     }
 
     @Override
@@ -372,77 +400,72 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Log
 
-    public void insertLog(Packet packet, String dname, int connection, boolean interactive) {
+    // Insert the rows in a single transaction with compiled statements,
+    // listeners are notified once for all rows
+    public void insertLog(List<LogEntry> entries) {
+        if (entries.size() == 0)
+            return;
+
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
+            if (stmtInsertLog == null) {
+                stmtInsertLog = db.compileStatement("INSERT INTO log" +
+                        " (time, version, protocol, flags, saddr, sport, daddr, dport, dname, data, uid, allowed, connection, interactive)" +
+                        " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                stmtDeleteLogSyn = db.compileStatement("DELETE FROM log" +
+                        " WHERE time > ?" +
+                        " AND protocol = ?" +
+                        " AND version = ?" +
+                        " AND flags = 'S'" + // SYN
+                        " AND daddr = ?" +
+                        " AND dport = ?" +
+                        " AND uid = ?");
+            }
+
             db.beginTransactionNonExclusive();
             try {
-                if (packet.protocol == 6 /* TCP */ &&
-                        packet.daddr != null &&
-                        packet.dport > 0 &&
-                        packet.uid > 0 &&
-                        "sni".equals(packet.data)) {
-                    int deleted = db.delete("log", "time > ?" +
-                                    " AND protocol = ?" +
-                                    " AND version = ?" +
-                                    " AND flags = ?" +
-                                    " AND daddr = ?" +
-                                    " AND dport = ?" +
-                                    " AND uid = ?",
-                            new String[]{
-                                    Long.toString(packet.time - SYN_SNI_DELAY),
-                                    Integer.toString(packet.protocol),
-                                    Integer.toString(packet.version),
-                                    "S", // SYN
-                                    packet.daddr,
-                                    Integer.toString(packet.dport),
-                                    Integer.toString(packet.uid)
-                            });
-                    Log.i(TAG, "Deleted=" + deleted + " packet=" + packet + " dname=" + dname);
-                }
-                ContentValues cv = new ContentValues();
-                cv.put("time", packet.time);
-                cv.put("version", packet.version);
-
-                if (packet.protocol < 0)
-                    cv.putNull("protocol");
-                else
-                    cv.put("protocol", packet.protocol);
-
-                cv.put("flags", packet.flags);
-
-                cv.put("saddr", packet.saddr);
-                if (packet.sport < 0)
-                    cv.putNull("sport");
-                else
-                    cv.put("sport", packet.sport);
-
-                cv.put("daddr", packet.daddr);
-                if (packet.dport < 0)
-                    cv.putNull("dport");
-                else
-                    cv.put("dport", packet.dport);
-
-                if (dname == null)
-                    cv.putNull("dname");
-                else
-                    cv.put("dname", dname);
-
-                cv.put("data", packet.data);
-
-                if (packet.uid < 0)
-                    cv.putNull("uid");
-                else
-                    cv.put("uid", packet.uid);
-
-                cv.put("allowed", packet.allowed ? 1 : 0);
-
-                cv.put("connection", connection);
-                cv.put("interactive", interactive ? 1 : 0);
+                for (LogEntry entry : entries) {
+                    Packet packet = entry.packet;
+                    if (packet.protocol == 6 /* TCP */ &&
+                            packet.daddr != null &&
+                            packet.dport > 0 &&
+                            packet.uid > 0 &&
+                            "sni".equals(packet.data)) {
+                        stmtDeleteLogSyn.clearBindings();
+                        stmtDeleteLogSyn.bindLong(1, packet.time - SYN_SNI_DELAY);
+                        stmtDeleteLogSyn.bindLong(2, packet.protocol);
+                        stmtDeleteLogSyn.bindLong(3, packet.version);
+                        stmtDeleteLogSyn.bindString(4, packet.daddr);
+                        stmtDeleteLogSyn.bindLong(5, packet.dport);
+                        stmtDeleteLogSyn.bindLong(6, packet.uid);
+                        int deleted = stmtDeleteLogSyn.executeUpdateDelete();
+                        Log.i(TAG, "Deleted=" + deleted + " packet=" + packet + " dname=" + entry.dname);
+                    }
 
-                if (db.insert("log", null, cv) == -1)
-                    Log.e(TAG, "Insert log failed");
+                    stmtInsertLog.clearBindings();
+                    stmtInsertLog.bindLong(1, packet.time);
+                    stmtInsertLog.bindLong(2, packet.version);
+                    if (packet.protocol >= 0)
+                        stmtInsertLog.bindLong(3, packet.protocol);
+                    bindString(stmtInsertLog, 4, packet.flags);
+                    bindString(stmtInsertLog, 5, packet.saddr);
+                    if (packet.sport >= 0)
+                        stmtInsertLog.bindLong(6, packet.sport);
+                    bindString(stmtInsertLog, 7, packet.daddr);
+                    if (packet.dport >= 0)
+                        stmtInsertLog.bindLong(8, packet.dport);
+                    bindString(stmtInsertLog, 9, entry.dname);
+                    bindString(stmtInsertLog, 10, packet.data);
+                    if (packet.uid >= 0)
+                        stmtInsertLog.bindLong(11, packet.uid);
+                    stmtInsertLog.bindLong(12, packet.allowed ? 1 : 0);
+                    stmtInsertLog.bindLong(13, entry.connection);
+                    stmtInsertLog.bindLong(14, entry.interactive ? 1 : 0);
+
+                    if (stmtInsertLog.executeInsert() == -1)
+                        Log.e(TAG, "Insert log failed");
+                }
 
                 db.setTransactionSuccessful();
             } finally {
@@ -455,6 +478,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         notifyLogChanged();
     }
 
+    // Unbound parameters are null
+    private static void bindString(SQLiteStatement stmt, int index, String value) {
+        if (value != null)
+            stmt.bindString(index, value);
+    }
+
     public void clearLog(int uid) {
         lock.writeLock().lock();
         try {
@@ -545,47 +574,55 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Access
 
+    // Existing rows are updated with a single statement and new rows are inserted,
+    // the write lock serializes updates and there is a unique index on the access table
+    // INSERT ... ON CONFLICT requires SQLite 3.24, which Android 11 and later have only
     public boolean updateAccess(Packet packet, String dname, int block) {
         int rows;
 
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                ContentValues cv = new ContentValues();
-                cv.put("time", packet.time);
-                cv.put("allowed", packet.allowed ? 1 : 0);
-                if (block >= 0)
-                    cv.put("block", block);
-
+            if (stmtUpdateAccess == null) {
                 // There is a segmented index on uid, version, protocol, daddr and dport
-                rows = db.update("access", cv, "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?",
-                        new String[]{
-                                Integer.toString(packet.uid),
-                                Integer.toString(packet.version),
-                                Integer.toString(packet.protocol),
-                                dname == null ? packet.daddr : dname,
-                                Integer.toString(packet.dport)});
-
-                if (rows == 0) {
-                    cv.put("uid", packet.uid);
-                    cv.put("version", packet.version);
-                    cv.put("protocol", packet.protocol);
-                    cv.put("daddr", dname == null ? packet.daddr : dname);
-                    cv.put("dport", packet.dport);
-                    if (block < 0)
-                        cv.put("block", block);
-
-                    if (db.insert("access", null, cv) == -1)
-                        Log.e(TAG, "Insert access failed");
-                } else if (rows != 1)
-                    Log.e(TAG, "Update access failed rows=" + rows);
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+                String where = " WHERE uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?";
+                stmtUpdateAccess = db.compileStatement(
+                        "UPDATE access SET time = ?, allowed = ?" + where);
+                stmtUpdateAccessBlock = db.compileStatement(
+                        "UPDATE access SET time = ?, allowed = ?, block = ?" + where);
+                stmtInsertAccess = db.compileStatement("INSERT INTO access" +
+                        " (uid, version, protocol, daddr, dport, time, allowed, block)" +
+                        " VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
             }
+
+            SQLiteStatement update = (block < 0 ? stmtUpdateAccess : stmtUpdateAccessBlock);
+            int index = 1;
+            update.clearBindings();
+            update.bindLong(index++, packet.time);
+            update.bindLong(index++, packet.allowed ? 1 : 0);
+            if (block >= 0)
+                update.bindLong(index++, block);
+            update.bindLong(index++, packet.uid);
+            update.bindLong(index++, packet.version);
+            update.bindLong(index++, packet.protocol);
+            bindString(update, index++, dname == null ? packet.daddr : dname);
+            update.bindLong(index, packet.dport);
+            rows = update.executeUpdateDelete();
+
+            if (rows == 0) {
+                stmtInsertAccess.clearBindings();
+                stmtInsertAccess.bindLong(1, packet.uid);
+                stmtInsertAccess.bindLong(2, packet.version);
+                stmtInsertAccess.bindLong(3, packet.protocol);
+                bindString(stmtInsertAccess, 4, dname == null ? packet.daddr : dname);
+                stmtInsertAccess.bindLong(5, packet.dport);
+                stmtInsertAccess.bindLong(6, packet.time);
+                stmtInsertAccess.bindLong(7, packet.allowed ? 1 : 0);
+                stmtInsertAccess.bindLong(8, block);
+                if (stmtInsertAccess.executeInsert() == -1)
+                    Log.e(TAG, "Insert access failed");
+            } else if (rows != 1)
+                Log.e(TAG, "Update access failed rows=" + rows);
         } finally {
             lock.writeLock().unlock();
         }
@@ -594,41 +631,36 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return (rows == 0);
     }
 
-    public void updateUsage(Usage usage, String dname) {
+    // Usage is added with increments, so there is no need to read the current values
+    public void updateUsage(Collection<Usage> usages) {
+        if (usages.size() == 0)
+            return;
+
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
+            if (stmtUpdateUsage == null)
                 // There is a segmented index on uid, version, protocol, daddr and dport
-                String selection = "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?";
-                String[] selectionArgs = new String[]{
-                        Integer.toString(usage.Uid),
-                        Integer.toString(usage.Version),
-                        Integer.toString(usage.Protocol),
-                        dname == null ? usage.DAddr : dname,
-                        Integer.toString(usage.DPort)
-                };
-
-                try (Cursor cursor = db.query("access", new String[]{"sent", "received", "connections"}, selection, selectionArgs, null, null, null)) {
-                    long sent = 0;
-                    long received = 0;
-                    int connections = 0;
-                    int colSent = cursor.getColumnIndex("sent");
-                    int colReceived = cursor.getColumnIndex("received");
-                    int colConnections = cursor.getColumnIndex("connections");
-                    if (cursor.moveToNext()) {
-                        sent = cursor.isNull(colSent) ? 0 : cursor.getLong(colSent);
-                        received = cursor.isNull(colReceived) ? 0 : cursor.getLong(colReceived);
-                        connections = cursor.isNull(colConnections) ? 0 : cursor.getInt(colConnections);
-                    }
+                stmtUpdateUsage = db.compileStatement("UPDATE access SET" +
+                        " sent = IFNULL(sent, 0) + ?" +
+                        ", received = IFNULL(received, 0) + ?" +
+                        ", connections = IFNULL(connections, 0) + ?" +
+                        " WHERE uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?");
 
-                    ContentValues cv = new ContentValues();
-                    cv.put("sent", sent + usage.Sent);
-                    cv.put("received", received + usage.Received);
-                    cv.put("connections", connections + 1);
-
-                    int rows = db.update("access", cv, selection, selectionArgs);
+            db.beginTransactionNonExclusive();
+            try {
+                for (Usage usage : usages) {
+                    stmtUpdateUsage.clearBindings();
+                    stmtUpdateUsage.bindLong(1, usage.Sent);
+                    stmtUpdateUsage.bindLong(2, usage.Received);
+                    stmtUpdateUsage.bindLong(3, usage.Connections);
+                    stmtUpdateUsage.bindLong(4, usage.Uid);
+                    stmtUpdateUsage.bindLong(5, usage.Version);
+                    stmtUpdateUsage.bindLong(6, usage.Protocol);
+                    bindString(stmtUpdateUsage, 7, usage.DName == null ? usage.DAddr : usage.DName);
+                    stmtUpdateUsage.bindLong(8, usage.DPort);
+
+                    int rows = stmtUpdateUsage.executeUpdateDelete();
                     if (rows != 1)
                         Log.e(TAG, "Update usage failed rows=" + rows);
                 }
@@ -812,47 +844,66 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // DNS
 
-    public boolean insertDns(ResourceRecord rr) {
+    // Insert or update the records in a single transaction
+    // Returns the records inserted or updated
+    public List<ResourceRecord> insertDns(Collection<ResourceRecord> rrs) {
+        List<ResourceRecord> result = new ArrayList<>();
+        if (rrs.size() == 0)
+            return result;
+
+        int min = Integer.parseInt(prefs.getString("ttl", "259200"));
+
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                int ttl = rr.TTL;
-
-                int min = Integer.parseInt(prefs.getString("ttl", "259200"));
-                if (ttl < min)
-                    ttl = min;
-
-                ContentValues cv = new ContentValues();
-                cv.put("time", rr.Time);
-                cv.put("ttl", ttl * 1000L);
+                for (ResourceRecord rr : rrs) {
+                    int ttl = rr.TTL;
+                    if (ttl < min)
+                        ttl = min;
 
-                int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
-                        new String[]{rr.QName, rr.AName, rr.Resource});
-
-                if (rows == 0) {
-                    cv.put("qname", rr.QName);
-                    cv.put("aname", rr.AName);
-                    cv.put("resource", rr.Resource);
-                    cv.put("uid", rr.uid);
-
-                    if (db.insert("dns", null, cv) == -1)
-                        Log.e(TAG, "Insert dns failed");
-                    else
-                        rows = 1;
-                } else if (rows != 1)
-                    Log.e(TAG, "Update dns failed rows=" + rows);
+                    ContentValues cv = new ContentValues();
+                    cv.put("time", rr.Time);
+                    cv.put("ttl", ttl * 1000L);
+
+                    int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
+                            new String[]{rr.QName, rr.AName, rr.Resource});
+
+                    if (rows == 0) {
+                        cv.put("qname", rr.QName);
+                        cv.put("aname", rr.AName);
+                        cv.put("resource", rr.Resource);
+                        cv.put("uid", rr.uid);
+
+                        if (db.insert("dns", null, cv) == -1)
+                            Log.e(TAG, "Insert dns failed");
+                        else {
+                            rows = 1;
+
+                            // Addresses not cached will be loaded on the next lookup
+                            synchronized (mapQName) {
+                                TreeMap<String, Set<Integer>> qnames = mapQName.get(rr.Resource);
+                                if (qnames != null)
+                                    addQName(qnames, rr.QName, rr.uid);
+                            }
+                        }
+                    } else if (rows != 1)
+                        Log.e(TAG, "Update dns failed rows=" + rows);
+
+                    if (rows > 0)
+                        result.add(rr);
+                }
 
                 db.setTransactionSuccessful();
-
-                return (rows > 0);
             } finally {
                 db.endTransaction();
             }
         } finally {
             lock.writeLock().unlock();
         }
+
+        return result;
     }
 
     public void cleanupDns() {
@@ -866,6 +917,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.execSQL("DELETE FROM dns WHERE time + ttl < " + now);
                 Log.i(TAG, "Cleanup DNS");
 
+                synchronized (mapQName) {
+                    mapQName.clear();
+                }
+
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -883,6 +938,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             try {
                 db.delete("dns", null, new String[]{});
 
+                synchronized (mapQName) {
+                    mapQName.clear();
+                }
+
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -893,25 +952,50 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public String getQName(int uid, String ip) {
+        synchronized (mapQName) {
+            TreeMap<String, Set<Integer>> qnames = mapQName.get(ip);
+            if (qnames != null)
+                return getQName(qnames, uid);
+        }
+
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
+            TreeMap<String, Set<Integer>> qnames = new TreeMap<>();
             // There is a segmented index on resource
-            String query = "SELECT d.qname";
-            query += " FROM dns AS d";
-            query += " WHERE d.resource = '" + ip.replace("'", "''") + "'";
-            query += " ORDER BY (d.uid = " + uid + ") DESC, d.qname";
-            query += " LIMIT 1";
-            // There is no way to known for sure which domain name an app used, so just pick the first one
-            return db.compileStatement(query).simpleQueryForString();
-        } catch (SQLiteDoneException ignored) {
-            // Not found
-            return null;
+            try (Cursor cursor = db.rawQuery("SELECT qname, uid FROM dns WHERE resource = ?", new String[]{ip})) {
+                while (cursor.moveToNext())
+                    addQName(qnames, cursor.getString(0), cursor.isNull(1) ? null : cursor.getInt(1));
+            }
+
+            synchronized (mapQName) {
+                mapQName.put(ip, qnames);
+            }
+
+            return getQName(qnames, uid);
         } finally {
             lock.readLock().unlock();
         }
     }
 
+    private static void addQName(TreeMap<String, Set<Integer>> qnames, String qname, Integer uid) {
+        Set<Integer> uids = qnames.get(qname);
+        if (uids == null) {
+            uids = new HashSet<>();
+            qnames.put(qname, uids);
+        }
+        uids.add(uid);
+    }
+
+    // There is no way to known for sure which domain name an app used,
+    // so pick the first one resolved by the app, else the first one
+    private static String getQName(TreeMap<String, Set<Integer>> qnames, int uid) {
+        for (Map.Entry<String, Set<Integer>> entry : qnames.entrySet())
+            if (entry.getValue().contains(uid))
+                return entry.getKey();
+        return (qnames.size() == 0 ? null : qnames.firstKey());
+    }
+
     public Cursor getAlternateQNames(String qname) {
         lock.readLock().lock();
         try {
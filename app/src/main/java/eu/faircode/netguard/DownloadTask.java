@@ -52,6 +52,9 @@ public class DownloadTask extends AsyncTask<Object, Integer, Object> {
     private PowerManager.WakeLock wakeLock;
 
     public interface Listener {
+        // Called on the background thread
+        void onDownloaded();
+
         void onCompleted();
 
         void onCancelled();
@@ -110,6 +113,12 @@ public class DownloadTask extends AsyncTask<Object, Integer, Object> {
             }
 
             Log.i(TAG, "Downloaded size=" + size);
+
+            out.close();
+            out = null;
+            if (!isCancelled())
+                listener.onDownloaded();
+
             return null;
         } catch (Throwable ex) {
             return ex;
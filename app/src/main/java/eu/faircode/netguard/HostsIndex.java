@@ -0,0 +1,323 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2025 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Immutable set of blocked host names
+// Layout: magic, version, count, reserved, hosts file modified, hosts file length, offsets[count + 1], names
+// Names are stored lower case, with the characters reversed and sorted,
+// so a lookup is a binary search without any allocation
+// The index is compiled once per hosts file change and memory mapped on start
+public class HostsIndex {
+    private static final String TAG = "NetGuard.HostsIndex";
+
+    private static final int MAGIC = 0x4E474849; // NGHI
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 * 4 + 2 * 8;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int names;
+
+    private HostsIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE ||
+                buffer.getInt(0) != MAGIC ||
+                buffer.getInt(4) != VERSION)
+            throw new IOException("Invalid hosts index");
+
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        long names = HEADER_SIZE + (this.count + 1L) * 4;
+        if (this.count < 0 || names > buffer.capacity())
+            throw new IOException("Invalid hosts index count=" + this.count);
+        this.names = (int) names;
+
+        // Lookups trust the offsets, so check once that all names are within the buffer
+        int previous = 0;
+        for (int i = 0; i <= this.count; i++) {
+            int offset = getOffset(i);
+            if (offset < previous || offset > buffer.capacity() - this.names)
+                throw new IOException("Invalid hosts index offset=" + offset + " index=" + i);
+            previous = offset;
+        }
+    }
+
+    public static File getIndexFile(Context context) {
+        return new File(context.getFilesDir(), "hosts.idx");
+    }
+
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public int getByteSize() {
+        return this.buffer.capacity();
+    }
+
+    public boolean contains(String name) {
+        return contains(name, false);
+    }
+
+    // Optionally match parent domains too, for example example.com will match a.b.example.com
+    public boolean contains(String name, boolean subdomains) {
+        if (name == null)
+            return false;
+
+        if (find(name, 0))
+            return true;
+
+        if (subdomains) {
+            int dot = name.indexOf('.');
+            while (dot >= 0 && dot + 1 < name.length()) {
+                if (find(name, dot + 1))
+                    return true;
+                dot = name.indexOf('.', dot + 1);
+            }
+        }
+
+        return false;
+    }
+
+    // Binary search the part of the name starting at from
+    private boolean find(String name, int from) {
+        int lo = 0;
+        int hi = this.count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, name, from);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return true;
+        }
+
+        return false;
+    }
+
+    private int getOffset(int index) {
+        return this.buffer.getInt(HEADER_SIZE + index * 4);
+    }
+
+    // Compare entry with the reversed name
+    private int compare(int index, String name, int from) {
+        int start = this.names + getOffset(index);
+        int len = this.names + getOffset(index + 1) - start;
+        int nlen = name.length() - from;
+        int last = name.length() - 1;
+
+        int n = Math.min(len, nlen);
+        for (int i = 0; i < n; i++) {
+            int b = this.buffer.get(start + i) & 0xFF;
+            int c = lower(name.charAt(last - i));
+            if (b != c)
+                return (b - c);
+        }
+
+        return (len - nlen);
+    }
+
+    private static char lower(char c) {
+        return (c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+    }
+
+    public static void compile(File hosts, File index) throws IOException {
+        HostsIndex built = build(hosts);
+
+        // Compiles can run concurrently, so each compile writes its own file
+        File tmp = File.createTempFile("hosts", ".idx", index.getParentFile());
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(built.buffer.array());
+            out.getFD().sync();
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        } finally {
+            if (out != null)
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+        }
+
+        if (!tmp.renameTo(index)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + index);
+        }
+
+        Log.i(TAG, "Compiled " + built.size() + " hosts into " + index + " size=" + built.getByteSize());
+    }
+
+    // Returns null if there is no index or if the index is stale
+    public static HostsIndex map(File hosts, File index) throws IOException {
+        if (!index.exists())
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(index, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE ||
+                    buffer.getInt(0) != MAGIC ||
+                    buffer.getInt(4) != VERSION ||
+                    buffer.getLong(16) != hosts.lastModified() ||
+                    buffer.getLong(24) != hosts.length()) {
+                Log.i(TAG, "Stale hosts index " + index);
+                return null;
+            }
+            return new HostsIndex(buffer);
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+    }
+
+    private static HostsIndex build(File hosts) throws IOException {
+        // Get file attributes before reading to not miss concurrent changes
+        long modified = hosts.lastModified();
+        long length = hosts.length();
+
+        List<String> list = new ArrayList<>();
+
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(hosts));
+            String line;
+            while ((line = br.readLine()) != null) {
+                int hash = line.indexOf('#');
+                int end = (hash < 0 ? line.length() : hash);
+
+                // Expect: address name
+                int words = 0;
+                int start = -1;
+                int name = -1;
+                int name_end = -1;
+                for (int i = 0; i <= end; i++)
+                    if (i == end || Character.isWhitespace(line.charAt(i))) {
+                        if (start >= 0) {
+                            words++;
+                            if (words == 2) {
+                                name = start;
+                                name_end = i;
+                            }
+                            start = -1;
+                        }
+                    } else if (start < 0)
+                        start = i;
+
+                if (words == 2) {
+                    String host = reverse(line, name, name_end);
+                    if (host == null)
+                        Log.i(TAG, "Invalid hosts file name: " + line);
+                    else
+                        list.add(host);
+                } else if (words > 0)
+                    Log.i(TAG, "Invalid hosts file line: " + line);
+            }
+        } finally {
+            if (br != null)
+                try {
+                    br.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+        }
+
+        list.add(reverse("test.netguard.me", 0, "test.netguard.me".length()));
+
+        return build(list, modified, length);
+    }
+
+    private static HostsIndex build(List<String> list, long modified, long length) throws IOException {
+        String[] reversed = list.toArray(new String[0]);
+        Arrays.sort(reversed);
+
+        int count = 0;
+        int size = 0;
+        for (int i = 0; i < reversed.length; i++)
+            if (i == 0 || !reversed[i].equals(reversed[i - 1])) {
+                reversed[count++] = reversed[i];
+                size += reversed[i].length();
+            }
+
+        int names = HEADER_SIZE + (count + 1) * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(names + size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(count);
+        buffer.putInt(0);
+        buffer.putLong(modified);
+        buffer.putLong(length);
+
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(offset);
+            offset += reversed[i].length();
+        }
+        buffer.putInt(offset);
+
+        for (int i = 0; i < count; i++) {
+            String host = reversed[i];
+            for (int c = 0; c < host.length(); c++)
+                buffer.put((byte) host.charAt(c));
+        }
+
+        return new HostsIndex(buffer);
+    }
+
+    // Lower case and reversed, null if not a plain ASCII host name
+    private static String reverse(String line, int start, int end) {
+        if (start >= end)
+            return null;
+        char[] host = new char[end - start];
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c <= ' ' || c > '~')
+                return null;
+            host[end - 1 - i] = lower(c);
+        }
+        return new String(host);
+    }
+}
@@ -0,0 +1,35 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2025 by Marcel Bokhorst (M66B)
+*/
+
+// Traffic log row waiting to be written
+public class LogEntry {
+    public Packet packet;
+    public String dname;
+    public int connection;
+    public boolean interactive;
+
+    public LogEntry(Packet packet, String dname, int connection, boolean interactive) {
+        this.packet = packet;
+        this.dname = dname;
+        this.connection = connection;
+        this.interactive = interactive;
+    }
+}
@@ -27,6 +27,8 @@ public class Packet {
     public String saddr;
     public int sport;
     public String daddr;
+    public long daddr_hi;
+    public long daddr_lo;
     public int dport;
     public String data;
     public int uid;
@@ -97,6 +97,14 @@ public class ServiceExternal extends IntentService {
 
                     Log.i(TAG, "Downloaded size=" + size);
 
+                    out.close();
+                    out = null;
+                    try {
+                        HostsIndex.compile(tmp, HostsIndex.getIndexFile(this));
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
+
                     if (hosts.exists())
                         hosts.delete();
                     tmp.renameTo(hosts);
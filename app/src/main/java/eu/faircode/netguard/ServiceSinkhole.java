@@ -68,6 +68,8 @@ import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.TypedValue;
 import android.widget.RemoteViews;
 
@@ -96,6 +98,8 @@ import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -105,14 +109,16 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -150,21 +156,25 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private long last_hosts_modified = 0;
     private long last_malware_modified = 0;
-    private Map<String, Boolean> mapHostsBlocked = new HashMap<>();
-    private Map<String, Boolean> mapMalware = new HashMap<>();
-    private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
-    private Map<Integer, Integer> mapUidKnown = new HashMap<>();
-    private final Map<IPKey, Map<InetAddress, IPRule>> mapUidIPFilters = new HashMap<>();
-    private Map<Integer, Forward> mapForward = new HashMap<>();
-    private Map<Integer, Boolean> mapNotify = new HashMap<>();
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private volatile Rules rules = new Rules();
+    private volatile Options options = null;
+    private final Object lock = new Object();
+
+    // The packet thread adds resolved addresses without locking, so snapshots are replaced with compare-and-set
+    private static final AtomicReferenceFieldUpdater<ServiceSinkhole, Rules> RULES =
+            AtomicReferenceFieldUpdater.newUpdater(ServiceSinkhole.class, Rules.class, "rules");
+
+    // Addresses resolved while the IP filters are rebuilt, to be put again in the new table
+    private volatile ConcurrentLinkedQueue<ResourceRecord> rebuilding = null;
 
     private volatile Looper commandLooper;
     private volatile Looper logLooper;
     private volatile Looper statsLooper;
+    private volatile Looper dnsLooper;
     private volatile CommandHandler commandHandler;
     private volatile LogHandler logHandler;
     private volatile StatsHandler statsHandler;
+    private volatile DnsHandler dnsHandler;
 
     private static final int NOTIFY_ENFORCING = 1;
     private static final int NOTIFY_WAITING = 2;
@@ -191,6 +201,13 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private static final int MSG_STATS_UPDATE = 3;
     private static final int MSG_PACKET = 4;
     private static final int MSG_USAGE = 5;
+    private static final int MSG_LOG_FLUSH = 6;
+    private static final int MSG_USAGE_FLUSH = 7;
+    private static final int MSG_DNS = 8;
+    private static final int MSG_FLUSH = 9;
+
+    private static final int DECISION_SIZE = 256; // bytes, see struct decision in netguard.h
+    private static final int PCAP_FILES_MAX = 10; // see netguard.h
 
     private enum State {none, waiting, enforcing, stats}
 
@@ -208,7 +225,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private native void jni_start(long context, int loglevel);
 
-    private native void jni_run(long context, int tun, boolean fwd53, int rcode);
+    private native void jni_run(long context, int tun, boolean fwd53, int rcode, int batch, int workers);
 
     private native void jni_stop(long context);
 
@@ -218,7 +235,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private native int[] jni_get_stats(long context);
 
-    private static native void jni_pcap(String name, int record_size, int file_size);
+    private native void jni_hosts(long context, ByteBuffer index, boolean subdomains);
+
+    private native void jni_verdicts(long context, boolean enabled);
+
+    private static native void jni_pcap(String name, int record_size, int file_size, int files, boolean pcapng);
 
     private native void jni_socks5(String addr, int port, String username, String password);
 
@@ -247,8 +268,45 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
         }
 
-        File pcap = (enabled ? new File(context.getDir("data", MODE_PRIVATE), "netguard.pcap") : null);
-        jni_pcap(pcap == null ? null : pcap.getAbsolutePath(), record_size, file_size);
+        int files = 1;
+        try {
+            String n = prefs.getString("pcap_files", null);
+            if (TextUtils.isEmpty(n))
+                n = "1";
+            files = Integer.parseInt(n);
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+
+        boolean pcapng = prefs.getBoolean("pcapng", false);
+
+        File pcap = (enabled ? getPcapFile(context) : null);
+        jni_pcap(pcap == null ? null : pcap.getAbsolutePath(), record_size, file_size, files, pcapng);
+    }
+
+    public static File getPcapFile(Context context) {
+        return new File(context.getDir("data", MODE_PRIVATE), "netguard.pcap");
+    }
+
+    // Rotated files are named netguard.pcap.1, netguard.pcap.2, etc, with .1 being the most recent
+    // Returns the oldest file first and the current file last
+    public static List<File> getPcapFiles(Context context) {
+        File pcap = getPcapFile(context);
+        List<File> files = new ArrayList<>();
+        for (int i = PCAP_FILES_MAX - 1; i > 0; i--) {
+            File file = new File(pcap.getAbsolutePath() + "." + i);
+            if (file.exists())
+                files.add(file);
+        }
+        if (pcap.exists())
+            files.add(pcap);
+        return files;
+    }
+
+    public static void deletePcapFiles(Context context) {
+        for (File file : getPcapFiles(context))
+            if (!file.delete())
+                Log.w(TAG, "Delete PCAP failed file=" + file);
     }
 
     synchronized private static PowerManager.WakeLock getLock(Context context) {
@@ -642,6 +700,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 stopVPN(vpn);
                 vpn = null;
                 unprepare();
+
+                // Write the usage of the sessions closed so far
+                logHandler.flush();
             }
             if (state == State.enforcing && !temporary) {
                 Log.d(TAG, "Stop foreground state=" + state.toString());
@@ -745,6 +806,22 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         public int queue = 0;
 
         private static final int MAX_QUEUE = 250;
+        private static final int LOG_BATCH = 100; // rows
+        private static final long LOG_DELAY = 1000L; // milliseconds
+        private static final int USAGE_MAX = 1000; // entries
+        private static final long USAGE_DELAY = 60 * 1000L; // milliseconds
+
+        // Traffic log rows are written in batches, only accessed by the log thread
+        private List<LogEntry> pending = new ArrayList<>();
+        private long rows = 0;
+        private long flushes = 0;
+
+        // Usage is summed per uid, version, protocol, address and port and written periodically
+        // The counters are written by the log thread only and shown in the debug traffic notification
+        private Map<String, Usage> pendingUsage = new HashMap<>();
+        private long usageRecords = 0; // accounted
+        private volatile int usagePending = 0; // entries
+        private volatile long usageFlushes = 0;
 
         public LogHandler(Looper looper) {
             super(looper);
@@ -786,6 +863,29 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             }
         }
 
+        // Write pending rows and usage, for example when stopping
+        // This is a separate message, because a batch flush removes the delayed flush messages
+        public void flush() {
+            sendEmptyMessage(MSG_FLUSH);
+        }
+
+        // Write pending rows and usage as the last message, delayed flush messages are discarded on quit
+        public void quit() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushLog();
+                        flushUsage();
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    } finally {
+                        getLooper().quit();
+                    }
+                }
+            });
+        }
+
         @Override
         public void handleMessage(Message msg) {
             try {
@@ -798,6 +898,19 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                         usage((Usage) msg.obj);
                         break;
 
+                    case MSG_LOG_FLUSH:
+                        flushLog();
+                        return; // not queued
+
+                    case MSG_USAGE_FLUSH:
+                        flushUsage();
+                        return; // not queued
+
+                    case MSG_FLUSH:
+                        flushLog();
+                        flushUsage();
+                        return; // not queued
+
                     default:
                         Log.e(TAG, "Unknown log message=" + msg.what);
                 }
@@ -813,9 +926,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
         private void log(Packet packet, int connection, boolean interactive) {
             // Get settings
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-            boolean log = prefs.getBoolean("log", false);
-            boolean log_app = prefs.getBoolean("log_app", false);
+            Options options = ServiceSinkhole.this.options;
+            boolean log = options.log;
+            boolean log_app = options.log_app;
 
             DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
 
@@ -823,8 +936,13 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             String dname = dh.getQName(packet.uid, packet.daddr);
 
             // Traffic log
-            if (log)
-                dh.insertLog(packet, dname, connection, interactive);
+            if (log) {
+                pending.add(new LogEntry(packet, dname, connection, interactive));
+                if (pending.size() >= LOG_BATCH)
+                    flushLog();
+                else if (!hasMessages(MSG_LOG_FLUSH))
+                    sendEmptyMessageDelayed(MSG_LOG_FLUSH, LOG_DELAY);
+            }
 
             // Application log
             if (log_app && packet.uid >= 0 &&
@@ -832,30 +950,200 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 if (!(packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */))
                     packet.dport = 0;
                 if (dh.updateAccess(packet, dname, -1)) {
-                    lock.readLock().lock();
-                    if (!mapNotify.containsKey(packet.uid) || mapNotify.get(packet.uid))
+                    if (rules.notify.get(packet.uid, true))
                         showAccessNotification(packet.uid);
-                    lock.readLock().unlock();
                 }
             }
         }
 
+        private void flushLog() {
+            removeMessages(MSG_LOG_FLUSH);
+            if (pending.size() == 0)
+                return;
+
+            long start = SystemClock.elapsedRealtime();
+            int count = pending.size();
+            try {
+                DatabaseHelper.getInstance(ServiceSinkhole.this).insertLog(pending);
+            } finally {
+                pending.clear();
+            }
+
+            rows += count;
+            flushes++;
+            Log.i(TAG, "Log flushed rows=" + count +
+                    " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms" +
+                    " total rows=" + rows + " flushes=" + flushes);
+        }
+
+        private void flushUsage() {
+            removeMessages(MSG_USAGE_FLUSH);
+            if (pendingUsage.size() == 0)
+                return;
+
+            long start = SystemClock.elapsedRealtime();
+            int count = pendingUsage.size();
+            try {
+                DatabaseHelper.getInstance(ServiceSinkhole.this).updateUsage(pendingUsage.values());
+            } finally {
+                pendingUsage.clear();
+                usagePending = 0;
+            }
+
+            usageFlushes++;
+            Log.i(TAG, "Usage flushed entries=" + count +
+                    " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms" +
+                    " total records=" + usageRecords + " flushes=" + usageFlushes);
+        }
+
         private void usage(Usage usage) {
             if (usage.Uid >= 0 && !(usage.Uid == 0 && usage.Protocol == 17 && usage.DPort == 53)) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-                boolean filter = prefs.getBoolean("filter", false);
-                boolean log_app = prefs.getBoolean("log_app", false);
-                boolean track_usage = prefs.getBoolean("track_usage", false);
-                if (filter && log_app && track_usage) {
+                Options options = ServiceSinkhole.this.options;
+                if (options.filter && options.log_app && options.track_usage) {
                     DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
-                    String dname = dh.getQName(usage.Uid, usage.DAddr);
-                    Log.i(TAG, "Usage account " + usage + " dname=" + dname);
-                    dh.updateUsage(usage, dname);
+                    usage.DName = dh.getQName(usage.Uid, usage.DAddr);
+                    Log.i(TAG, "Usage account " + usage + " dname=" + usage.DName);
+
+                    String key = usage.Uid + "/" + usage.Version + "/" + usage.Protocol + "/" +
+                            (usage.DName == null ? usage.DAddr : usage.DName) + "/" + usage.DPort;
+                    Usage sum = pendingUsage.get(key);
+                    if (sum == null) {
+                        pendingUsage.put(key, usage);
+                        usagePending = pendingUsage.size();
+                    } else {
+                        sum.Time = Math.max(sum.Time, usage.Time);
+                        sum.Sent += usage.Sent;
+                        sum.Received += usage.Received;
+                        sum.Connections += usage.Connections;
+                    }
+                    usageRecords++;
+
+                    if (pendingUsage.size() >= USAGE_MAX)
+                        flushUsage();
+                    else if (!hasMessages(MSG_USAGE_FLUSH))
+                        sendEmptyMessageDelayed(MSG_USAGE_FLUSH, USAGE_DELAY);
                 }
             }
         }
     }
 
+    private final class DnsHandler extends Handler {
+        // Records waiting to be written, identical records are merged
+        private final Map<String, ResourceRecord> pending = new LinkedHashMap<>();
+        private List<ResourceRecord> writing = new ArrayList<>(); // guarded by pending
+        private long records = 0;
+        private long merged = 0;
+        private long stall = 0; // nanoseconds
+        private long stall_max = 0; // nanoseconds
+
+        public DnsHandler(Looper looper) {
+            super(looper);
+        }
+
+        // Called from the packet thread, so only queue the record
+        public void queue(ResourceRecord rr) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            String key = rr.QName + "/" + rr.AName + "/" + rr.Resource;
+            synchronized (pending) {
+                ResourceRecord existing = pending.get(key);
+                if (existing == null) {
+                    pending.put(key, rr);
+                    if (pending.size() == 1)
+                        sendEmptyMessage(MSG_DNS);
+                } else {
+                    existing.Time = rr.Time;
+                    existing.TTL = rr.TTL;
+                    if (existing.uid < 0)
+                        existing.uid = rr.uid;
+                    merged++;
+                }
+
+                records++;
+                long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+                stall += elapsed;
+                if (elapsed > stall_max)
+                    stall_max = elapsed;
+            }
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            try {
+                switch (msg.what) {
+                    case MSG_DNS:
+                        resolved();
+                        break;
+
+                    default:
+                        Log.e(TAG, "Unknown dns message=" + msg.what);
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+
+        // Records which are queued or being written, so not in the database yet
+        public List<ResourceRecord> getUnwritten() {
+            synchronized (pending) {
+                List<ResourceRecord> result = new ArrayList<>(pending.values());
+                result.addAll(writing);
+                return result;
+            }
+        }
+
+        // Records queued while the previous batch was written form the next batch
+        private void resolved() {
+            List<ResourceRecord> rrs;
+            long count;
+            long merges;
+            long average;
+            long max;
+            synchronized (pending) {
+                rrs = new ArrayList<>(pending.values());
+                pending.clear();
+                writing = rrs;
+                count = records;
+                merges = merged;
+                average = (records == 0 ? 0 : stall / records);
+                max = stall_max;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            List<ResourceRecord> changed;
+            try {
+                changed = DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rrs);
+            } finally {
+                synchronized (pending) {
+                    writing = new ArrayList<>();
+                }
+            }
+
+            // The rules were updated on the packet thread already
+            for (ResourceRecord rr : changed)
+                Log.i(TAG, "New IP " + rr);
+
+            for (ResourceRecord rr : rrs)
+                if (rr.uid > 0 && !TextUtils.isEmpty(rr.AName)) {
+                    Map<String, Boolean> mapMalware = rules.malware;
+                    boolean malware = (mapMalware.containsKey(rr.AName) && mapMalware.get(rr.AName));
+
+                    if (malware) {
+                        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+                        boolean notified = prefs.getBoolean("malware." + rr.uid, false);
+                        if (!notified) {
+                            prefs.edit().putBoolean("malware." + rr.uid, true).apply();
+                            notifyNewApplication(rr.uid, true);
+                        }
+                    }
+                }
+
+            Log.i(TAG, "DNS batch records=" + rrs.size() + " changed=" + changed.size() +
+                    " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms" +
+                    " total records=" + count + " merged=" + merges +
+                    " stall avg=" + average + " max=" + max + " ns");
+        }
+    }
+
     private final class StatsHandler extends Handler {
         private boolean stats = false;
         private long when;
@@ -1102,7 +1390,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             if (BuildConfig.DEBUG) {
                 int[] count = jni_get_stats(jni_context);
                 remoteViews.setTextViewText(R.id.tvSessions, count[0] + "/" + count[1] + "/" + count[2]);
-                remoteViews.setTextViewText(R.id.tvFiles, count[3] + "/" + count[4]);
+                LogHandler lh = logHandler;
+                remoteViews.setTextViewText(R.id.tvFiles, count[3] + "/" + count[4] +
+                        (lh == null ? "" : " " + lh.usagePending + "/" + lh.usageFlushes));
             } else {
                 remoteViews.setTextViewText(R.id.tvSessions, "");
                 remoteViews.setTextViewText(R.id.tvFiles, "");
@@ -1524,30 +1814,28 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             prepareUidAllowed(listAllowed, listRule);
             prepareHostsBlocked();
             prepareMalwareList();
-            prepareUidIPFilters(null);
+            prepareUidIPFilters();
             prepareForwarding();
         } else {
-            lock.writeLock().lock();
-            mapUidAllowed.clear();
-            mapUidKnown.clear();
-            mapHostsBlocked.clear();
-            mapMalware.clear();
-            mapUidIPFilters.clear();
-            mapForward.clear();
-            lock.writeLock().unlock();
+            synchronized (lock) {
+                setRules(new Rules().withNotify(rules.notify));
+            }
+            setHostsBlocked(null, false);
         }
 
         if (log_app)
             prepareNotify(listRule);
         else {
-            lock.writeLock().lock();
-            mapNotify.clear();
-            lock.writeLock().unlock();
+            synchronized (lock) {
+                setRules(rules.withNotify(new SparseBooleanArray()));
+            }
         }
 
         if (log || log_app || filter) {
             int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
             final int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
+            final int batch = Integer.parseInt(prefs.getString("tun_batch", "32"));
+            final int workers = Integer.parseInt(prefs.getString("tun_workers", "1"));
             if (prefs.getBoolean("socks5_enabled", false))
                 jni_socks5(
                         prefs.getString("socks5_addr", ""),
@@ -1565,7 +1853,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                     @Override
                     public void run() {
                         Log.i(TAG, "Running tunnel context=" + jni_context);
-                        jni_run(jni_context, vpn.getFd(), mapForward.containsKey(53), rcode);
+                        jni_run(jni_context, vpn.getFd(), rules.forward.get(53) != null, rcode, batch, workers);
                         Log.i(TAG, "Tunnel exited");
                         tunnelThread = null;
                     }
@@ -1604,88 +1892,95 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
+    // Called with the lock held, which serializes all changes except the resolved addresses
+    // Addresses added in the meantime are kept, unless the IP filters are replaced as a whole
+    // Cached native verdicts are based on the previous snapshot
+    private void setRules(Rules next) {
+        while (true) {
+            Rules current = rules;
+            Rules publish = (next.uidDomains == current.uidDomains
+                    ? next.withIPFilters(current.uidIPFilters, current.uidDomains) : next);
+            if (RULES.compareAndSet(this, current, publish))
+                break;
+        }
+        invalidateVerdicts();
+    }
+
+    // Logging needs every decision to be made by Java
+    private void invalidateVerdicts() {
+        Options options = this.options;
+        if (jni_context != 0)
+            jni_verdicts(jni_context, options != null && !options.log && !options.log_app);
+    }
+
     private void unprepare() {
-        lock.writeLock().lock();
-        mapUidAllowed.clear();
-        mapUidKnown.clear();
-        mapHostsBlocked.clear();
-        mapMalware.clear();
-        mapUidIPFilters.clear();
-        mapForward.clear();
-        mapNotify.clear();
-        lock.writeLock().unlock();
+        synchronized (lock) {
+            setRules(new Rules());
+        }
+        setHostsBlocked(null, false);
     }
 
     private void prepareUidAllowed(List<Rule> listAllowed, List<Rule> listRule) {
-        lock.writeLock().lock();
-
-        mapUidAllowed.clear();
+        SparseBooleanArray uidAllowed = new SparseBooleanArray();
         for (Rule rule : listAllowed)
-            mapUidAllowed.put(rule.uid, true);
+            uidAllowed.put(rule.uid, true);
 
-        mapUidKnown.clear();
+        SparseBooleanArray uidKnown = new SparseBooleanArray();
         for (Rule rule : listRule)
-            mapUidKnown.put(rule.uid, rule.uid);
+            uidKnown.put(rule.uid, true);
 
-        lock.writeLock().unlock();
+        synchronized (lock) {
+            setRules(rules.withAllowed(uidAllowed, uidKnown));
+        }
     }
 
     private void prepareHostsBlocked() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
         boolean use_hosts = prefs.getBoolean("filter", false) && prefs.getBoolean("use_hosts", false);
+        boolean subdomains = prefs.getBoolean("use_hosts_subdomains", false);
         File hosts = new File(getFilesDir(), "hosts.txt");
         if (!use_hosts || !hosts.exists() || !hosts.canRead()) {
             Log.i(TAG, "Hosts file use=" + use_hosts + " exists=" + hosts.exists());
-            lock.writeLock().lock();
-            mapHostsBlocked.clear();
-            lock.writeLock().unlock();
+            setHostsBlocked(null, subdomains);
             return;
         }
 
+        HostsIndex current = rules.hostsBlocked;
         boolean changed = (hosts.lastModified() != last_hosts_modified);
-        if (!changed && mapHostsBlocked.size() > 0) {
+        if (!changed && current != null) {
             Log.i(TAG, "Hosts file unchanged");
+            setHostsBlocked(current, subdomains);
             return;
         }
         last_hosts_modified = hosts.lastModified();
 
-        lock.writeLock().lock();
-
-        mapHostsBlocked.clear();
-
-        int count = 0;
-        BufferedReader br = null;
+        HostsIndex index = null;
         try {
-            br = new BufferedReader(new FileReader(hosts));
-            String line;
-            while ((line = br.readLine()) != null) {
-                int hash = line.indexOf('#');
-                if (hash >= 0)
-                    line = line.substring(0, hash);
-                line = line.trim();
-                if (line.length() > 0) {
-                    String[] words = line.split("\\s+");
-                    if (words.length == 2) {
-                        count++;
-                        mapHostsBlocked.put(words[1], true);
-                    } else
-                        Log.i(TAG, "Invalid hosts file line: " + line);
-                }
+            long start = SystemClock.elapsedRealtime();
+            File file = HostsIndex.getIndexFile(this);
+            index = HostsIndex.map(hosts, file);
+            if (index == null) {
+                HostsIndex.compile(hosts, file);
+                index = HostsIndex.map(hosts, file);
             }
-            mapHostsBlocked.put("test.netguard.me", true);
-            Log.i(TAG, count + " hosts read");
+            if (index != null)
+                Log.i(TAG, index.size() + " hosts mapped" +
+                        " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms" +
+                        " size=" + index.getByteSize() + " bytes");
         } catch (IOException ex) {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-        } finally {
-            if (br != null)
-                try {
-                    br.close();
-                } catch (IOException exex) {
-                    Log.e(TAG, exex.toString() + "\n" + Log.getStackTraceString(exex));
-                }
         }
 
-        lock.writeLock().unlock();
+        setHostsBlocked(index, subdomains);
+    }
+
+    private void setHostsBlocked(HostsIndex index, boolean subdomains) {
+        synchronized (lock) {
+            setRules(rules.withHosts(index, subdomains));
+        }
+
+        // Let native code check memory mapped hosts without calling back into Java
+        jni_hosts(jni_context, index == null ? null : index.getBuffer(), subdomains);
     }
 
     private void prepareMalwareList() {
@@ -1694,22 +1989,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         File file = new File(getFilesDir(), "malware.txt");
         if (!malware || !file.exists() || !file.canRead()) {
             Log.i(TAG, "Malware use=" + malware + " exists=" + file.exists());
-            lock.writeLock().lock();
-            mapMalware.clear();
-            lock.writeLock().unlock();
+            synchronized (lock) {
+                setRules(rules.withMalware(new HashMap<String, Boolean>()));
+            }
             return;
         }
 
         boolean changed = (file.lastModified() != last_malware_modified);
-        if (!changed && mapMalware.size() > 0) {
+        if (!changed && rules.malware.size() > 0) {
             Log.i(TAG, "Malware unchanged");
             return;
         }
         last_malware_modified = file.lastModified();
 
-        lock.writeLock().lock();
-
-        mapMalware.clear();
+        Map<String, Boolean> mapMalware = new HashMap<>();
 
         int count = 0;
         BufferedReader br = null;
@@ -1742,23 +2035,52 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 }
         }
 
-        lock.writeLock().unlock();
+        synchronized (lock) {
+            setRules(rules.withMalware(mapMalware));
+        }
     }
 
-    private void prepareUidIPFilters(String dname) {
-        SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
-
-        lock.writeLock().lock();
-
-        if (dname == null) {
-            mapUidIPFilters.clear();
-            if (!IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this)) {
-                lock.writeLock().unlock();
-                return;
+    // The table is built without the lock, so a reload does not hold up other rule changes
+    private void prepareUidIPFilters() {
+        // Records which might not be in the database yet, and records resolved from now on
+        ConcurrentLinkedQueue<ResourceRecord> resolved = new ConcurrentLinkedQueue<>();
+        rebuilding = resolved;
+        try {
+            resolved.addAll(dnsHandler.getUnwritten());
+
+            IPFilters filters = new IPFilters();
+            Map<String, List<IPRule>> domains = new HashMap<>();
+            if (IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this))
+                buildUidIPFilters(filters, domains);
+
+            // Records resolved until the table is published are put in the new table
+            // A record added after a failed compare-and-set is put in the next attempt,
+            // a record added after publishing is put by the packet thread
+            int min = options.ttl;
+            synchronized (lock) {
+                while (true) {
+                    Rules current = rules;
+                    IPFilters merged = filters;
+                    for (ResourceRecord rr : resolved) {
+                        List<IPRule> domain = domains.get(rr.QName);
+                        InetAddress iname = (domain == null ? null : getResolvedAddress(rr));
+                        if (iname != null)
+                            merged = putResolved(merged, domain, rr, iname, Math.max(rr.TTL, min) * 1000L);
+                    }
+                    if (RULES.compareAndSet(this, current, current.withIPFilters(merged, domains)))
+                        break;
+                }
             }
+        } finally {
+            rebuilding = null;
         }
+        invalidateVerdicts();
+    }
+
+    private void buildUidIPFilters(IPFilters filters, Map<String, List<IPRule>> domains) {
+        SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
 
-        try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(dname)) {
+        try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(null)) {
             int colUid = cursor.getColumnIndex("uid");
             int colVersion = cursor.getColumnIndex("version");
             int colProtocol = cursor.getColumnIndex("protocol");
@@ -1788,48 +2110,153 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 }
 
                 IPKey key = new IPKey(version, protocol, dport, uid);
-                synchronized (mapUidIPFilters) {
-                    if (!mapUidIPFilters.containsKey(key))
-                        mapUidIPFilters.put(key, new HashMap());
 
-                    try {
-                        String name = (dresource == null ? daddr : dresource);
-                        if (Util.isNumericAddress(name)) {
-                            InetAddress iname = InetAddress.getByName(name);
-                            if (version == 4 && !(iname instanceof Inet4Address))
-                                continue;
-                            if (version == 6 && !(iname instanceof Inet6Address))
-                                continue;
-
-                            boolean exists = mapUidIPFilters.get(key).containsKey(iname);
-                            if (!exists || !mapUidIPFilters.get(key).get(iname).isBlocked()) {
-                                IPRule rule = new IPRule(key, name + "/" + iname, block, time, ttl);
-                                mapUidIPFilters.get(key).put(iname, rule);
-                                if (exists)
-                                    Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + dresource);
-                            } else if (exists) {
-                                mapUidIPFilters.get(key).get(iname).updateExpires(time, ttl);
-                                if (dname != null && ttl > 60 * 1000L)
-                                    Log.w(TAG, "Address updated " + key + " " + daddr + "/" + dresource);
-                            } else {
-                                if (dname != null)
-                                    Log.i(TAG, "Ignored " + key + " " + daddr + "/" + dresource + "=" + block);
-                            }
-                        } else
-                            Log.w(TAG, "Address not numeric " + name);
-                    } catch (UnknownHostException ex) {
-                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                // Keep the rules for domains, so new addresses can be added when resolved
+                if (!Util.isNumericAddress(daddr)) {
+                    List<IPRule> domain = domains.get(daddr);
+                    if (domain == null) {
+                        domain = new ArrayList<>();
+                        domains.put(daddr, domain);
                     }
+                    boolean found = false;
+                    for (IPRule rule : domain)
+                        if (rule.key.equals(key)) {
+                            found = true;
+                            break;
+                        }
+                    if (!found)
+                        domain.add(new IPRule(key, daddr, block, 0, 0));
+                }
+
+                try {
+                    String name = (dresource == null ? daddr : dresource);
+                    if (Util.isNumericAddress(name)) {
+                        InetAddress iname = InetAddress.getByName(name);
+                        if (version == 4 && !(iname instanceof Inet4Address))
+                            continue;
+                        if (version == 6 && !(iname instanceof Inet6Address))
+                            continue;
+
+                        long hi = IPFilters.getHigh(iname);
+                        long lo = IPFilters.getLow(iname);
+                        IPRule existing = filters.get(key.pack(), hi, lo);
+                        if (existing == null || !existing.isBlocked()) {
+                            IPRule rule = new IPRule(key, name + "/" + iname, block, time, ttl);
+                            filters.put(key.pack(), hi, lo, rule);
+                            if (existing != null)
+                                Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + dresource);
+                        } else {
+                            filters.put(key.pack(), hi, lo, existing.withExpires(time, ttl));
+                        }
+                    } else
+                        Log.w(TAG, "Address not numeric " + name);
+                } catch (UnknownHostException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
             }
         }
+    }
+
+    // Add a resolved address to the rules of its domain
+    // This is done before the response is forwarded, so the rules apply to the first connection
+    // Called from the packet thread, so it never waits for the lock
+    private void updateUidIPFilters(ResourceRecord rr) {
+        ConcurrentLinkedQueue<ResourceRecord> resolved = rebuilding;
+        if (resolved != null)
+            resolved.add(rr);
+
+        Rules current = rules;
+        if (!current.uidDomains.containsKey(rr.QName))
+            return;
+
+        InetAddress iname = getResolvedAddress(rr);
+        if (iname == null)
+            return;
+
+        // Same minimum as the DNS table
+        long ttl = Math.max(rr.TTL, options.ttl) * 1000L;
+
+        while (true) {
+            List<IPRule> domain = current.uidDomains.get(rr.QName);
+            if (domain == null)
+                return;
+
+            IPFilters filters = putResolved(current.uidIPFilters, domain, rr, iname, ttl);
+            if (filters == current.uidIPFilters)
+                return;
 
-        lock.writeLock().unlock();
+            if (RULES.compareAndSet(this, current, current.withIPFilters(filters, current.uidDomains))) {
+                if (isVerdictChanged(current.uidIPFilters, filters, domain, iname))
+                    invalidateVerdicts();
+                return;
+            }
+
+            current = rules;
+        }
+    }
+
+    private static InetAddress getResolvedAddress(ResourceRecord rr) {
+        if (!Util.isNumericAddress(rr.Resource))
+            return null;
+        try {
+            return InetAddress.getByName(rr.Resource);
+        } catch (UnknownHostException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return null;
+        }
+    }
+
+    // Returns the table with the rules of the domain put for the resolved address
+    // Published tables are never modified, so the table is copied before the first change
+    // Rules which will not expire soon are not refreshed, so repeated answers return the same table
+    private static IPFilters putResolved(IPFilters filters, List<IPRule> domain,
+                                         ResourceRecord rr, InetAddress iname, long ttl) {
+        long hi = IPFilters.getHigh(iname);
+        long lo = IPFilters.getLow(iname);
+        int version = (iname instanceof Inet4Address ? 4 : 6);
+
+        IPFilters result = filters;
+        for (IPRule template : domain) {
+            if (template.key.version != version)
+                continue;
+
+            // A blocked address stays blocked, like when the table is built
+            long key = template.key.pack();
+            IPRule existing = result.get(key, hi, lo);
+            boolean keep = (existing != null && existing.isBlocked());
+            boolean block = (keep || template.isBlocked());
+            if (existing != null && existing.isBlocked() == block &&
+                    existing.time + existing.ttl >= rr.Time + ttl / 2)
+                continue;
+
+            if (result == filters)
+                result = new IPFilters(filters);
+            if (keep)
+                result.put(key, hi, lo, existing.withExpires(rr.Time, ttl));
+            else
+                result.put(key, hi, lo, new IPRule(template.key, rr.Resource + "/" + iname, block, rr.Time, ttl));
+        }
+
+        return result;
+    }
+
+    // Only a new, expired or changed rule changes the decision for the address
+    private static boolean isVerdictChanged(IPFilters before, IPFilters after, List<IPRule> domain, InetAddress iname) {
+        long hi = IPFilters.getHigh(iname);
+        long lo = IPFilters.getLow(iname);
+        for (IPRule template : domain) {
+            long key = template.key.pack();
+            IPRule previous = before.get(key, hi, lo);
+            IPRule next = after.get(key, hi, lo);
+            if (next != previous &&
+                    (previous == null || previous.isExpired() || previous.isBlocked() != next.isBlocked()))
+                return true;
+        }
+        return false;
     }
 
     private void prepareForwarding() {
-        lock.writeLock().lock();
-        mapForward.clear();
+        SparseArray<Forward> mapForward = new SparseArray<>();
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         if (prefs.getBoolean("filter", false)) {
@@ -1851,7 +2278,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 }
             }
         }
-        lock.writeLock().unlock();
+
+        synchronized (lock) {
+            setRules(rules.withForward(mapForward));
+        }
     }
 
     private void prepareNotify(List<Rule> listRule) {
@@ -1859,11 +2289,13 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         boolean notify = prefs.getBoolean("notify_access", false);
         boolean system = prefs.getBoolean("manage_system", false);
 
-        lock.writeLock().lock();
-        mapNotify.clear();
+        SparseBooleanArray mapNotify = new SparseBooleanArray();
         for (Rule rule : listRule)
             mapNotify.put(rule.uid, notify && rule.notify && (system || !rule.system));
-        lock.writeLock().unlock();
+
+        synchronized (lock) {
+            setRules(rules.withNotify(mapNotify));
+        }
     }
 
     private boolean isLockedDown(boolean metered) {
@@ -1992,32 +2424,15 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     // Called from native code
     private void dnsResolved(ResourceRecord rr) {
-        if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr)) {
-            Log.i(TAG, "New IP " + rr);
-            prepareUidIPFilters(rr.QName);
-        }
-        if (rr.uid > 0 && !TextUtils.isEmpty(rr.AName)) {
-            lock.readLock().lock();
-            boolean malware = (mapMalware.containsKey(rr.AName) && mapMalware.get(rr.AName));
-            lock.readLock().unlock();
-
-            if (malware) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-                boolean notified = prefs.getBoolean("malware." + rr.uid, false);
-                if (!notified) {
-                    prefs.edit().putBoolean("malware." + rr.uid, true).apply();
-                    notifyNewApplication(rr.uid, true);
-                }
-            }
-        }
+        // Queue first, so a reload either finds the record as not yet written or in its rebuild queue
+        dnsHandler.queue(rr);
+        updateUidIPFilters(rr);
     }
 
     // Called from native code
     private boolean isDomainBlocked(String name) {
-        lock.readLock().lock();
-        boolean blocked = (mapHostsBlocked.containsKey(name) && mapHostsBlocked.get(name));
-        lock.readLock().unlock();
-        return blocked;
+        Rules rules = this.rules;
+        return (rules.hostsBlocked != null && rules.hostsBlocked.contains(name, rules.hostsSubdomains));
     }
 
     // Called from native code
@@ -2047,15 +2462,62 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     }
 
     // Called from native code
-    private Allowed isAddressAllowed(Packet packet) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    // Decides on a batch of flows with a single call, see struct decision in netguard.h
+    private void areAddressesAllowed(ByteBuffer buffer, int count) {
+        buffer.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < count; i++) {
+            int base = i * DECISION_SIZE;
+
+            Packet packet = new Packet();
+            packet.version = buffer.getInt(base);
+            packet.protocol = buffer.getInt(base + 4);
+            packet.sport = buffer.getInt(base + 8);
+            packet.dport = buffer.getInt(base + 12);
+            packet.uid = buffer.getInt(base + 16);
+            packet.time = buffer.getLong(base + 32);
+            packet.daddr_hi = buffer.getLong(base + 40);
+            packet.daddr_lo = buffer.getLong(base + 48);
+            packet.flags = getDecisionString(buffer, base + 56, 16);
+            packet.data = getDecisionString(buffer, base + 72, 32);
+            packet.saddr = getDecisionString(buffer, base + 104, 48);
+            packet.daddr = getDecisionString(buffer, base + 152, 48);
+
+            Allowed allowed = isAddressAllowed(packet);
+
+            buffer.putInt(base + 20, allowed == null ? 0 : 1);
+            buffer.putInt(base + 24, allowed == null ? 0 : allowed.rport);
+            putDecisionString(buffer, base + 200, 48, allowed == null ? null : allowed.raddr);
+        }
+    }
 
-        lock.readLock().lock();
+    private static String getDecisionString(ByteBuffer buffer, int offset, int size) {
+        char[] chars = new char[size];
+        int len = 0;
+        while (len < size) {
+            byte b = buffer.get(offset + len);
+            if (b == 0)
+                break;
+            chars[len++] = (char) (b & 0xFF);
+        }
+        return new String(chars, 0, len);
+    }
+
+    private static void putDecisionString(ByteBuffer buffer, int offset, int size, String value) {
+        int len = (value == null ? 0 : Math.min(value.length(), size - 1));
+        for (int i = 0; i < len; i++)
+            buffer.put(offset + i, (byte) value.charAt(i));
+        buffer.put(offset + len, (byte) 0);
+    }
+
+    private Allowed isAddressAllowed(Packet packet) {
+        // Use one snapshot for the whole decision, it can be replaced at any time by a reload
+        Options options = this.options;
+        Rules rules = this.rules;
 
         packet.allowed = false;
-        if (prefs.getBoolean("filter", false)) {
+        if (options.filter) {
             // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
-            if (packet.protocol == 17 /* UDP */ && !prefs.getBoolean("filter_udp", false)) {
+            if (packet.protocol == 17 /* UDP */ && !options.filter_udp) {
                 // Allow unfiltered UDP
                 packet.allowed = true;
                 Log.i(TAG, "Allowing UDP " + packet);
@@ -2065,7 +2527,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 packet.allowed = true;
                 Log.w(TAG, "Allowing disconnected system " + packet);
             } else if ((packet.uid < 2000 || BuildConfig.PLAY_STORE_RELEASE) &&
-                    !mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
+                    rules.uidKnown.indexOfKey(packet.uid) < 0 && isSupported(packet.protocol)) {
                 // Allow unknown (system) traffic
                 packet.allowed = true;
                 Log.w(TAG, "Allowing unknown system " + packet);
@@ -2075,38 +2537,33 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.w(TAG, "Allowing self " + packet);
             } else {
                 boolean filtered = false;
-                IPKey key = new IPKey(packet.version, packet.protocol, packet.dport, packet.uid);
-                if (mapUidIPFilters.containsKey(key))
-                    try {
-                        InetAddress iaddr = InetAddress.getByName(packet.daddr);
-                        Map<InetAddress, IPRule> map = mapUidIPFilters.get(key);
-                        if (map != null && map.containsKey(iaddr)) {
-                            IPRule rule = map.get(iaddr);
-                            if (rule.isExpired())
-                                Log.i(TAG, "DNS expired " + packet + " rule " + rule);
-                            else {
-                                filtered = true;
-                                packet.allowed = !rule.isBlocked();
-                                Log.i(TAG, "Filtering " + packet +
-                                        " allowed=" + packet.allowed + " rule " + rule);
-                            }
-                        }
-                    } catch (UnknownHostException ex) {
-                        Log.w(TAG, "Allowed " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                long key = IPKey.pack(packet.version, packet.protocol, packet.dport, packet.uid);
+                IPRule rule = rules.uidIPFilters.get(key, packet.daddr_hi, packet.daddr_lo);
+                if (rule != null) {
+                    if (rule.isExpired())
+                        Log.i(TAG, "DNS expired " + packet + " rule " + rule);
+                    else {
+                        filtered = true;
+                        packet.allowed = !rule.isBlocked();
+                        Log.i(TAG, "Filtering " + packet +
+                                " allowed=" + packet.allowed + " rule " + rule);
                     }
+                }
 
-                if (!filtered)
-                    if (mapUidAllowed.containsKey(packet.uid))
-                        packet.allowed = mapUidAllowed.get(packet.uid);
+                if (!filtered) {
+                    int index = rules.uidAllowed.indexOfKey(packet.uid);
+                    if (index >= 0)
+                        packet.allowed = rules.uidAllowed.valueAt(index);
                     else
                         Log.w(TAG, "No rules for " + packet);
+                }
             }
         }
 
         Allowed allowed = null;
         if (packet.allowed) {
-            if (mapForward.containsKey(packet.dport)) {
-                Forward fwd = mapForward.get(packet.dport);
+            Forward fwd = rules.forward.get(packet.dport);
+            if (fwd != null) {
                 if (fwd.ruid == packet.uid) {
                     allowed = new Allowed();
                 } else {
@@ -2117,9 +2574,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 allowed = new Allowed();
         }
 
-        lock.readLock().unlock();
-
-        if (prefs.getBoolean("log", false) || prefs.getBoolean("log_app", false))
+        if (options.log || options.log_app)
             if (packet.protocol != 6 /* TCP */ || !"".equals(packet.flags))
                 if (packet.uid != Process.myUid())
                     logPacket(packet);
@@ -2567,6 +3022,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         boolean pcap = prefs.getBoolean("pcap", false);
         setPcap(pcap, this);
 
+        options = new Options(prefs);
+        invalidateVerdicts();
         prefs.registerOnSharedPreferenceChangeListener(this);
 
         Util.setTheme(this);
@@ -2575,17 +3032,21 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         HandlerThread commandThread = new HandlerThread(getString(R.string.app_name) + " command", Process.THREAD_PRIORITY_FOREGROUND);
         HandlerThread logThread = new HandlerThread(getString(R.string.app_name) + " log", Process.THREAD_PRIORITY_BACKGROUND);
         HandlerThread statsThread = new HandlerThread(getString(R.string.app_name) + " stats", Process.THREAD_PRIORITY_BACKGROUND);
+        HandlerThread dnsThread = new HandlerThread(getString(R.string.app_name) + " dns", Process.THREAD_PRIORITY_FOREGROUND);
         commandThread.start();
         logThread.start();
         statsThread.start();
+        dnsThread.start();
 
         commandLooper = commandThread.getLooper();
         logLooper = logThread.getLooper();
         statsLooper = statsThread.getLooper();
+        dnsLooper = dnsThread.getLooper();
 
         commandHandler = new CommandHandler(commandLooper);
         logHandler = new LogHandler(logLooper);
         statsHandler = new StatsHandler(statsLooper);
+        dnsHandler = new DnsHandler(dnsLooper);
 
         // Listen for user switches
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
@@ -2833,6 +3294,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String name) {
+        options = new Options(prefs);
+        invalidateVerdicts();
+
         if ("theme".equals(name)) {
             Log.i(TAG, "Theme changed");
             Util.setTheme(this);
@@ -2949,8 +3413,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         synchronized (this) {
             Log.i(TAG, "Destroy");
             commandLooper.quit();
-            logLooper.quit();
+            logHandler.quit();
             statsLooper.quit();
+            dnsLooper.quitSafely(); // pending records
 
             for (Command command : Command.values())
                 commandHandler.removeMessages(command.ordinal());
@@ -3092,7 +3557,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private void updateEnforcingNotification(int allowed, int total) {
         // Update notification
-        Notification notification = getEnforcingNotification(allowed, total - allowed, mapHostsBlocked.size());
+        Notification notification = getEnforcingNotification(allowed, total - allowed, rules.hostsBlocked == null ? 0 : rules.hostsBlocked.size());
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         if (Util.canNotify(this))
             nm.notify(NOTIFY_ENFORCING, notification);
@@ -3475,7 +3940,86 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
-    private class IPKey {
+    // Immutable rules snapshot, replaced as a whole on every change
+    // Native code reads the current snapshot without locking, so it never waits for a reload
+    // The collections are never changed after being put in a snapshot, changes copy them first
+    private static class Rules {
+        private final SparseBooleanArray uidAllowed;
+        private final SparseBooleanArray uidKnown;
+        private final IPFilters uidIPFilters;
+        private final Map<String, List<IPRule>> uidDomains; // IP rules by domain name
+        private final SparseArray<Forward> forward;
+        private final SparseBooleanArray notify;
+        private final Map<String, Boolean> malware;
+        private final HostsIndex hostsBlocked;
+        private final boolean hostsSubdomains;
+
+        Rules() {
+            this(new SparseBooleanArray(), new SparseBooleanArray(), new IPFilters(),
+                    new HashMap<String, List<IPRule>>(), new SparseArray<Forward>(),
+                    new SparseBooleanArray(), new HashMap<String, Boolean>(), null, false);
+        }
+
+        private Rules(SparseBooleanArray uidAllowed, SparseBooleanArray uidKnown,
+                      IPFilters uidIPFilters, Map<String, List<IPRule>> uidDomains,
+                      SparseArray<Forward> forward, SparseBooleanArray notify, Map<String, Boolean> malware,
+                      HostsIndex hostsBlocked, boolean hostsSubdomains) {
+            this.uidAllowed = uidAllowed;
+            this.uidKnown = uidKnown;
+            this.uidIPFilters = uidIPFilters;
+            this.uidDomains = uidDomains;
+            this.forward = forward;
+            this.notify = notify;
+            this.malware = malware;
+            this.hostsBlocked = hostsBlocked;
+            this.hostsSubdomains = hostsSubdomains;
+        }
+
+        Rules withAllowed(SparseBooleanArray uidAllowed, SparseBooleanArray uidKnown) {
+            return new Rules(uidAllowed, uidKnown, uidIPFilters, uidDomains, forward, notify, malware, hostsBlocked, hostsSubdomains);
+        }
+
+        Rules withIPFilters(IPFilters uidIPFilters, Map<String, List<IPRule>> uidDomains) {
+            return new Rules(uidAllowed, uidKnown, uidIPFilters, uidDomains, forward, notify, malware, hostsBlocked, hostsSubdomains);
+        }
+
+        Rules withForward(SparseArray<Forward> forward) {
+            return new Rules(uidAllowed, uidKnown, uidIPFilters, uidDomains, forward, notify, malware, hostsBlocked, hostsSubdomains);
+        }
+
+        Rules withNotify(SparseBooleanArray notify) {
+            return new Rules(uidAllowed, uidKnown, uidIPFilters, uidDomains, forward, notify, malware, hostsBlocked, hostsSubdomains);
+        }
+
+        Rules withMalware(Map<String, Boolean> malware) {
+            return new Rules(uidAllowed, uidKnown, uidIPFilters, uidDomains, forward, notify, malware, hostsBlocked, hostsSubdomains);
+        }
+
+        Rules withHosts(HostsIndex hostsBlocked, boolean hostsSubdomains) {
+            return new Rules(uidAllowed, uidKnown, uidIPFilters, uidDomains, forward, notify, malware, hostsBlocked, hostsSubdomains);
+        }
+    }
+
+    // Immutable copy of the settings used for every new connection
+    private static class Options {
+        final boolean filter;
+        final boolean filter_udp;
+        final boolean log;
+        final boolean log_app;
+        final boolean track_usage;
+        final int ttl; // seconds, minimum for resolved addresses
+
+        Options(SharedPreferences prefs) {
+            this.filter = prefs.getBoolean("filter", false);
+            this.filter_udp = prefs.getBoolean("filter_udp", false);
+            this.log = prefs.getBoolean("log", false);
+            this.log_app = prefs.getBoolean("log_app", false);
+            this.track_usage = prefs.getBoolean("track_usage", false);
+            this.ttl = Integer.parseInt(prefs.getString("ttl", "259200"));
+        }
+    }
+
+    private static class IPKey {
         int version;
         int protocol;
         int dport;
@@ -3489,6 +4033,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             this.uid = uid;
         }
 
+        public long pack() {
+            return pack(this.version, this.protocol, this.dport, this.uid);
+        }
+
+        // version (8 bits), protocol (8 bits), port (16 bits), uid (32 bits)
+        public static long pack(int version, int protocol, int dport, int uid) {
+            if (protocol != 6 && protocol != 17)
+                dport = 0;
+            return ((long) (version & 0xFF) << 56) |
+                    ((long) (protocol & 0xFF) << 48) |
+                    ((long) (dport & 0xFFFF) << 32) |
+                    (uid & 0xFFFFFFFFL);
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof IPKey))
@@ -3511,7 +4069,111 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
-    private class IPRule {
+    // Open addressing hash table of IP rules keyed by packed key and 128 bits address
+    // A lookup doesn't parse or allocate anything, which matters because it is done for every new connection
+    private static class IPFilters {
+        private long[] keys;
+        private long[] highs;
+        private long[] lows;
+        private IPRule[] values;
+        private int size;
+
+        IPFilters() {
+            this.keys = new long[16];
+            this.highs = new long[16];
+            this.lows = new long[16];
+            this.values = new IPRule[16];
+            this.size = 0;
+        }
+
+        IPFilters(IPFilters other) {
+            this.keys = other.keys.clone();
+            this.highs = other.highs.clone();
+            this.lows = other.lows.clone();
+            this.values = other.values.clone();
+            this.size = other.size;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public IPRule get(long key, long hi, long lo) {
+            int mask = this.values.length - 1;
+            int i = hash(key, hi, lo) & mask;
+            while (this.values[i] != null) {
+                if (this.keys[i] == key && this.highs[i] == hi && this.lows[i] == lo)
+                    return this.values[i];
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        public void put(long key, long hi, long lo, IPRule rule) {
+            if ((this.size + 1) * 2 > this.values.length)
+                resize(this.values.length * 2);
+
+            int mask = this.values.length - 1;
+            int i = hash(key, hi, lo) & mask;
+            while (this.values[i] != null) {
+                if (this.keys[i] == key && this.highs[i] == hi && this.lows[i] == lo) {
+                    this.values[i] = rule;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+
+            this.keys[i] = key;
+            this.highs[i] = hi;
+            this.lows[i] = lo;
+            this.values[i] = rule;
+            this.size++;
+        }
+
+        private void resize(int capacity) {
+            long[] okeys = this.keys;
+            long[] ohighs = this.highs;
+            long[] olows = this.lows;
+            IPRule[] ovalues = this.values;
+
+            this.keys = new long[capacity];
+            this.highs = new long[capacity];
+            this.lows = new long[capacity];
+            this.values = new IPRule[capacity];
+            this.size = 0;
+
+            for (int i = 0; i < ovalues.length; i++)
+                if (ovalues[i] != null)
+                    put(okeys[i], ohighs[i], olows[i], ovalues[i]);
+        }
+
+        private int hash(long key, long hi, long lo) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            h = (h ^ hi) * 0xC2B2AE3D27D4EB4FL;
+            h = (h ^ lo) * 0x165667B19E3779F9L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        // Same packing as the native code: IPv4 in the low 32 bits, IPv6 in network order
+        static long getHigh(InetAddress address) {
+            byte[] b = address.getAddress();
+            return (b.length == 16 ? toLong(b, 0) : 0);
+        }
+
+        static long getLow(InetAddress address) {
+            byte[] b = address.getAddress();
+            return (b.length == 16 ? toLong(b, 8) : toLong(b, 0) >>> 32);
+        }
+
+        private static long toLong(byte[] b, int offset) {
+            long value = 0;
+            for (int i = 0; i < 8; i++)
+                value = (value << 8) | (offset + i < b.length ? b[offset + i] & 0xFF : 0);
+            return value;
+        }
+    }
+
+    private static class IPRule {
         private IPKey key;
         private String name;
         private boolean block;
@@ -3534,9 +4196,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             return System.currentTimeMillis() > (this.time + this.ttl * 2);
         }
 
-        public void updateExpires(long time, long ttl) {
-            this.time = time;
-            this.ttl = ttl;
+        public IPRule withExpires(long time, long ttl) {
+            return new IPRule(this.key, this.name, this.block, time, ttl);
         }
 
         @Override
@@ -32,6 +32,8 @@ public class Usage {
     public int Uid;
     public long Sent;
     public long Received;
+    public int Connections = 1;
+    public String DName = null; // resolved
 
     private static DateFormat formatter = SimpleDateFormat.getDateTimeInstance();
 
@@ -0,0 +1,303 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2025 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Flows are collected in a direct buffer and decided by Java with a single call,
+// so a burst of new connections costs one JNI call instead of one per connection
+
+_Static_assert(sizeof(struct decision) == DECISION_SIZE, "Decision size mismatch");
+
+static jmethodID midAreAddressesAllowed = NULL;
+
+void init_decisions(struct arguments *args) {
+    struct decisions *decisions = ng_malloc(sizeof(struct decisions), "decisions");
+    memset(decisions, 0, sizeof(struct decisions));
+
+    decisions->flow = ng_malloc(DECISION_BATCH * DECISION_SIZE, "decisions flow");
+    memset(decisions->flow, 0, DECISION_BATCH * DECISION_SIZE);
+
+    jobject buffer = (*args->env)->NewDirectByteBuffer(
+            args->env, decisions->flow, DECISION_BATCH * DECISION_SIZE);
+    decisions->buffer = jniGlobalRef(args->env, buffer);
+    ng_add_alloc(decisions->buffer, "decisions buffer");
+    (*args->env)->DeleteLocalRef(args->env, buffer);
+
+    args->decisions = decisions;
+}
+
+void clear_decisions(struct arguments *args) {
+    struct decisions *decisions = args->decisions;
+    if (decisions == NULL)
+        return;
+
+    log_android(ANDROID_LOG_WARN, "Decisions flows %lld JNI calls %lld",
+                decisions->flows, decisions->calls);
+
+    (*args->env)->DeleteGlobalRef(args->env, decisions->buffer);
+    ng_delete_alloc(decisions->buffer, __FILE__, __LINE__);
+    ng_free(decisions->flow, __FILE__, __LINE__);
+    ng_free(decisions, __FILE__, __LINE__);
+    args->decisions = NULL;
+}
+
+// Copy at most size - 1 characters and always terminate
+static void copy_string(char *dest, const char *source, size_t size) {
+    size_t len = strnlen(source, size - 1);
+    memcpy(dest, source, len);
+    dest[len] = 0;
+}
+
+int add_decision(const struct arguments *args,
+                 jint version,
+                 jint protocol,
+                 const char *flags,
+                 const char *source,
+                 jint sport,
+                 const char *dest,
+                 jint dport,
+                 const char *data,
+                 jint uid) {
+    struct decisions *decisions = args->decisions;
+
+    // Reuse the decision for the same flow, for example a retransmitted SYN
+    for (int i = 0; i < decisions->count; i++) {
+        struct decision *d = &decisions->flow[i];
+        if (d->version == version && d->protocol == protocol &&
+            d->sport == sport && d->dport == dport && d->uid == uid &&
+            strcmp(d->flags, flags) == 0 && strcmp(d->data, data) == 0 &&
+            strcmp(d->source, source) == 0 && strcmp(d->dest, dest) == 0)
+            return i;
+    }
+
+    if (decisions->count >= DECISION_BATCH) {
+        log_android(ANDROID_LOG_ERROR, "Decisions full");
+        return -1;
+    }
+
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+
+    struct decision *d = &decisions->flow[decisions->count];
+    memset(d, 0, sizeof(struct decision));
+    d->version = version;
+    d->protocol = protocol;
+    d->sport = sport;
+    d->dport = dport;
+    d->uid = uid;
+    d->allowed = 0;
+    d->time = tv.tv_sec * 1000LL + tv.tv_usec / 1000;
+    get_packed_address(version, dest, &d->daddr_hi, &d->daddr_lo);
+    copy_string(d->flags, flags, sizeof(d->flags));
+    copy_string(d->data, data, sizeof(d->data));
+    copy_string(d->source, source, sizeof(d->source));
+    copy_string(d->dest, dest, sizeof(d->dest));
+
+    return decisions->count++;
+}
+
+void decide(const struct arguments *args) {
+    struct decisions *decisions = args->decisions;
+    if (decisions->count == 0)
+        return;
+
+#ifdef PROFILE_JNI
+    float mselapsed;
+    struct timeval start, end;
+    gettimeofday(&start, NULL);
+#endif
+
+    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+    ng_add_alloc(clsService, "clsService");
+
+    uint32_t generation = args->ctx->verdicts.generation;
+
+    const char *signature = "(Ljava/nio/ByteBuffer;I)V";
+    if (midAreAddressesAllowed == NULL)
+        midAreAddressesAllowed = jniGetMethodID(
+                args->env, clsService, "areAddressesAllowed", signature);
+
+    (*args->env)->CallVoidMethod(
+            args->env, args->instance, midAreAddressesAllowed,
+            decisions->buffer, decisions->count);
+    jniCheckException(args->env);
+
+    (*args->env)->DeleteLocalRef(args->env, clsService);
+    ng_delete_alloc(clsService, __FILE__, __LINE__);
+
+    decisions->calls++;
+    decisions->flows += decisions->count;
+
+    for (int i = 0; i < decisions->count; i++)
+        put_verdict(args, &decisions->flow[i], generation);
+
+#ifdef PROFILE_JNI
+    gettimeofday(&end, NULL);
+    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
+                (end.tv_usec - start.tv_usec) / 1000.0;
+    if (mselapsed > PROFILE_JNI)
+        log_android(ANDROID_LOG_WARN, "decide %d flows %f", decisions->count, mselapsed);
+#endif
+}
+
+int get_decision(const struct arguments *args, int index, struct allowed *redirect) {
+    if (index < 0 || index >= args->decisions->count)
+        return 0;
+
+    struct decision *d = &args->decisions->flow[index];
+    if (redirect != NULL) {
+        copy_string(redirect->raddr, d->raddr, sizeof(redirect->raddr));
+        redirect->rport = (uint16_t) d->rport;
+    }
+    return d->allowed;
+}
+
+void init_verdicts(struct context *ctx) {
+    struct verdicts *verdicts = &ctx->verdicts;
+    if (pthread_mutex_init(&verdicts->lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    verdicts->entry = ng_calloc(VERDICT_CACHE, sizeof(struct verdict), "verdicts");
+    verdicts->enabled = 0;
+    verdicts->generation = 1;
+    verdicts->hits = 0;
+    verdicts->misses = 0;
+}
+
+void clear_verdicts(struct context *ctx) {
+    struct verdicts *verdicts = &ctx->verdicts;
+    log_android(ANDROID_LOG_WARN, "Verdicts hits %lld misses %lld",
+                verdicts->hits, verdicts->misses);
+    ng_free(verdicts->entry, __FILE__, __LINE__);
+    if (pthread_mutex_destroy(&verdicts->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    memset(verdicts, 0, sizeof(struct verdicts));
+}
+
+// Called by Java without holding the lock, possibly while handling events,
+// so entries are invalidated by generation rather than cleared
+void set_verdicts(struct context *ctx, int enabled) {
+    ctx->verdicts.enabled = enabled;
+    invalidate_verdicts(ctx);
+}
+
+void invalidate_verdicts(struct context *ctx) {
+    __sync_add_and_fetch(&ctx->verdicts.generation, 1);
+}
+
+static uint32_t hash_verdict(jint version, jint protocol,
+                             jlong daddr_hi, jlong daddr_lo, jint dport, jint uid) {
+    uint64_t h = (uint64_t) daddr_hi * 0x9E3779B97F4A7C15ULL;
+    h = (h ^ (uint64_t) daddr_lo) * 0xC2B2AE3D27D4EB4FULL;
+    h = (h ^ (((uint64_t) (uint32_t) uid << 32) |
+              ((uint64_t) (dport & 0xFFFF) << 16) |
+              ((uint64_t) (version & 0xFF) << 8) |
+              (uint64_t) (protocol & 0xFF))) * 0x165667B19E3779F9ULL;
+    return (uint32_t) (h ^ (h >> 32));
+}
+
+static int is_verdict(const struct verdict *v,
+                      jint version, jint protocol,
+                      jlong daddr_hi, jlong daddr_lo, jint dport, jint uid) {
+    return (v->daddr_hi == daddr_hi && v->daddr_lo == daddr_lo &&
+            v->uid == uid && v->dport == dport &&
+            v->version == version && v->protocol == protocol);
+}
+
+// Returns -1 if not cached, else if allowed
+// The cache is shared by the workers, so entries are accessed with the lock held
+int get_verdict(const struct arguments *args,
+                jint version, jint protocol,
+                jlong daddr_hi, jlong daddr_lo, jint dport,
+                jint uid, struct allowed *redirect) {
+    struct verdicts *verdicts = &args->ctx->verdicts;
+    if (!verdicts->enabled)
+        return -1;
+
+    uint32_t generation = verdicts->generation;
+    long long now = get_ms();
+    uint32_t h = hash_verdict(version, protocol, daddr_hi, daddr_lo, dport, uid);
+
+    if (pthread_mutex_lock(&verdicts->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    int allowed = -1;
+    for (int i = 0; i < VERDICT_PROBE; i++) {
+        struct verdict *v = &verdicts->entry[(h + i) & (VERDICT_CACHE - 1)];
+        if (v->generation == generation && now - v->time < VERDICT_TTL &&
+            is_verdict(v, version, protocol, daddr_hi, daddr_lo, dport, uid)) {
+            memcpy(redirect, &v->redirect, sizeof(struct allowed));
+            allowed = v->allowed;
+            break;
+        }
+    }
+
+    if (allowed < 0)
+        verdicts->misses++;
+    else
+        verdicts->hits++;
+
+    if (pthread_mutex_unlock(&verdicts->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return allowed;
+}
+
+void put_verdict(const struct arguments *args, const struct decision *d, uint32_t generation) {
+    struct verdicts *verdicts = &args->ctx->verdicts;
+    if (!verdicts->enabled)
+        return;
+
+    // Rules changed while deciding
+    if (generation != verdicts->generation)
+        return;
+
+    // Replace the same flow, an invalid entry or else the oldest entry
+    long long now = get_ms();
+    uint32_t h = hash_verdict(d->version, d->protocol, d->daddr_hi, d->daddr_lo, d->dport, d->uid);
+
+    if (pthread_mutex_lock(&verdicts->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct verdict *slot = NULL;
+    for (int i = 0; i < VERDICT_PROBE; i++) {
+        struct verdict *v = &verdicts->entry[(h + i) & (VERDICT_CACHE - 1)];
+        if (is_verdict(v, d->version, d->protocol, d->daddr_hi, d->daddr_lo, d->dport, d->uid) ||
+            v->generation != generation || now - v->time >= VERDICT_TTL) {
+            slot = v;
+            break;
+        }
+        if (slot == NULL || v->time < slot->time)
+            slot = v;
+    }
+
+    slot->daddr_hi = d->daddr_hi;
+    slot->daddr_lo = d->daddr_lo;
+    slot->uid = d->uid;
+    slot->version = d->version;
+    slot->protocol = d->protocol;
+    slot->dport = d->dport;
+    slot->generation = generation;
+    slot->allowed = d->allowed;
+    slot->time = now;
+    copy_string(slot->redirect.raddr, d->raddr, sizeof(slot->redirect.raddr));
+    slot->redirect.rport = (uint16_t) d->rport;
+
+    if (pthread_mutex_unlock(&verdicts->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
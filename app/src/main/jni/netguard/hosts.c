@@ -0,0 +1,145 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2025 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Compiled hosts index, see HostsIndex.java
+// Layout: magic, version, count, reserved, modified, length, offsets[count + 1], names
+// Integers are big endian, names are lower case and reversed
+
+// The event loops use the hosts while holding the lock of their shard
+void set_hosts(JNIEnv *env, struct context *ctx, jobject buffer, jboolean subdomains) {
+    lock_shards(ctx);
+
+    struct hosts *hosts = &ctx->hosts;
+    if (hosts->buffer != NULL) {
+        (*env)->DeleteGlobalRef(env, hosts->buffer);
+        ng_delete_alloc(hosts->buffer, __FILE__, __LINE__);
+    }
+    hosts->buffer = NULL;
+    hosts->data = NULL;
+    hosts->count = 0;
+    hosts->names = 0;
+    hosts->subdomains = subdomains;
+    hosts->enabled = 1;
+
+    if (buffer != NULL) {
+        const uint8_t *data = (*env)->GetDirectBufferAddress(env, buffer);
+        jlong size = (*env)->GetDirectBufferCapacity(env, buffer);
+
+        int valid = (data != NULL && size >= HOSTS_HEADER &&
+                     ntohl(*((uint32_t *) data)) == HOSTS_MAGIC &&
+                     ntohl(*((uint32_t *) (data + 4))) == HOSTS_VERSION);
+
+        uint32_t count = (valid ? ntohl(*((uint32_t *) (data + 8))) : 0);
+        jlong names = HOSTS_HEADER + ((jlong) count + 1) * 4;
+        if (names > size)
+            valid = 0;
+
+        // Lookups trust the offsets, so check once that all names are within the buffer
+        uint32_t previous = 0;
+        for (uint32_t i = 0; valid && i <= count; i++) {
+            uint32_t offset = ntohl(*((uint32_t *) (data + HOSTS_HEADER + i * 4)));
+            if (offset < previous || offset > size - names)
+                valid = 0;
+            previous = offset;
+        }
+
+        if (!valid) {
+            // Use the Java implementation
+            hosts->enabled = 0;
+            log_android(ANDROID_LOG_WARN, "Hosts native lookup unavailable size %lld", size);
+        } else {
+            hosts->buffer = jniGlobalRef(env, buffer);
+            ng_add_alloc(hosts->buffer, "hosts");
+            hosts->data = data;
+            hosts->count = count;
+            hosts->names = (uint32_t) names;
+        }
+    }
+
+    log_android(ANDROID_LOG_WARN, "Hosts native %d count %u subdomains %d JNI calls avoided %lld",
+                hosts->enabled, hosts->count, hosts->subdomains, hosts->native);
+
+    unlock_shards(ctx);
+}
+
+void clear_hosts(JNIEnv *env, struct context *ctx) {
+    struct hosts *hosts = &ctx->hosts;
+    if (hosts->buffer != NULL) {
+        (*env)->DeleteGlobalRef(env, hosts->buffer);
+        ng_delete_alloc(hosts->buffer, __FILE__, __LINE__);
+    }
+    memset(hosts, 0, sizeof(struct hosts));
+}
+
+static inline uint32_t get_hosts_offset(const struct hosts *hosts, uint32_t index) {
+    return ntohl(*((uint32_t *) (hosts->data + HOSTS_HEADER + index * 4)));
+}
+
+// Compare entry with the reversed name
+static int compare_hosts(const struct hosts *hosts, uint32_t index,
+                         const char *name, size_t from, size_t len) {
+    uint32_t start = get_hosts_offset(hosts, index);
+    uint32_t elen = get_hosts_offset(hosts, index + 1) - start;
+    const uint8_t *entry = hosts->data + hosts->names + start;
+    size_t nlen = len - from;
+
+    size_t n = (elen < nlen ? elen : nlen);
+    for (size_t i = 0; i < n; i++) {
+        int b = entry[i];
+        int c = tolower((uint8_t) name[len - 1 - i]);
+        if (b != c)
+            return b - c;
+    }
+
+    return (elen < nlen ? -1 : (elen > nlen ? 1 : 0));
+}
+
+static int find_hosts(const struct hosts *hosts, const char *name, size_t from, size_t len) {
+    int32_t lo = 0;
+    int32_t hi = (int32_t) hosts->count - 1;
+    while (lo <= hi) {
+        int32_t mid = (int32_t) (((uint32_t) lo + (uint32_t) hi) >> 1);
+        int cmp = compare_hosts(hosts, (uint32_t) mid, name, from, len);
+        if (cmp < 0)
+            lo = mid + 1;
+        else if (cmp > 0)
+            hi = mid - 1;
+        else
+            return 1;
+    }
+    return 0;
+}
+
+int is_hosts_blocked(const struct hosts *hosts, const char *name) {
+    if (hosts->data == NULL || name == NULL || *name == 0)
+        return 0;
+
+    size_t len = strlen(name);
+    if (find_hosts(hosts, name, 0, len))
+        return 1;
+
+    if (hosts->subdomains)
+        for (size_t i = 0; i + 1 < len; i++)
+            if (name[i] == '.' && find_hosts(hosts, name, i + 1, len))
+                return 1;
+
+    return 0;
+}
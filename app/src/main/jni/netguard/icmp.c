@@ -170,7 +170,10 @@ jboolean handle_icmp(const struct arguments *args,
     }
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
+    struct ng_session *cur = get_session_bucket(
+            args->shard, (uint8_t) (version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6), version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src, 0,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst, 0);
     while (cur != NULL &&
            !((cur->protocol == IPPROTO_ICMP || cur->protocol == IPPROTO_ICMPV6) &&
              !cur->icmp.stop && cur->icmp.version == version &&
@@ -178,7 +181,9 @@ jboolean handle_icmp(const struct arguments *args,
                              cur->icmp.daddr.ip4 == ip4->daddr
                            : memcmp(&cur->icmp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
                              memcmp(&cur->icmp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+        cur = cur->hnext;
+    if (cur != NULL)
+        touch_session(args->shard, cur);
 
     // Create new session if needed
     if (cur == NULL) {
@@ -221,8 +226,7 @@ jboolean handle_icmp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add icmp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->shard, s);
 
         cur = s;
     }
@@ -359,7 +363,7 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
     // Write PCAP record
     if (res >= 0) {
         if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
+            write_pcap_rec(buffer, (size_t) res, cur->uid);
     } else
         log_android(ANDROID_LOG_WARN, "ICMP write error %d: %s", errno, strerror(errno));
 
@@ -34,10 +34,96 @@ uint16_t get_default_mss(int version) {
         return (uint16_t) (get_mtu() - sizeof(struct ip6_hdr) - sizeof(struct tcphdr));
 }
 
+void init_tun_pool(struct arguments *args) {
+    int batch = args->batch;
+    if (batch < 1)
+        batch = TUN_BATCH;
+    if (batch > TUN_BATCH_MAX)
+        batch = TUN_BATCH_MAX;
+
+    struct tun_pool *pool = ng_malloc(sizeof(struct tun_pool), "tun pool");
+    pool->batch = batch;
+    pool->mtu = get_mtu();
+    // Workers handle packets in the slots of their queue
+    pool->buffer = (args->queue == NULL ? ng_malloc(batch * pool->mtu, "tun pool buffer") : NULL);
+    pool->packet = ng_malloc(batch * sizeof(struct ip_packet), "tun pool packet");
+
+    log_android(ANDROID_LOG_WARN, "tun batch %d packets", batch);
+
+    args->pool = pool;
+}
+
+void clear_tun_pool(struct arguments *args) {
+    struct tun_pool *pool = args->pool;
+    if (pool == NULL)
+        return;
+
+    log_android(ANDROID_LOG_WARN, "tun wakeups %lld packets %lld",
+                args->ctx->tun_wakeups, args->ctx->tun_packets);
+
+    ng_free(pool->packet, __FILE__, __LINE__);
+    if (pool->buffer != NULL)
+        ng_free(pool->buffer, __FILE__, __LINE__);
+    ng_free(pool, __FILE__, __LINE__);
+    args->pool = NULL;
+}
+
+// Handle up to a batch of packets queued by the tun reader
+// The slots remain owned by the worker until the head is moved
+static int check_tun_queue(const struct arguments *args,
+                           const int epoll_fd,
+                           int sessions, int maxsessions) {
+    struct tun_queue *queue = args->queue;
+    struct tun_pool *pool = args->pool;
+
+    uint64_t value;
+    if (read(queue->event, &value, sizeof(value)) < 0 && errno != EAGAIN)
+        log_android(ANDROID_LOG_WARN, "Read event error %d: %s", errno, strerror(errno));
+
+    if (pthread_mutex_lock(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    int count = (queue->count < pool->batch ? queue->count : pool->batch);
+    int head = queue->head;
+    if (pthread_mutex_unlock(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    int queued = 0;
+    for (int i = 0; i < count; i++) {
+        int slot = (head + i) % queue->capacity;
+        if (parse_ip(args, queue->buffer + slot * queue->mtu, queue->length[slot],
+                     sessions, maxsessions, &pool->packet[queued]))
+            queued++;
+    }
+
+    handle_ip(args, pool->packet, queued, epoll_fd);
+
+    if (pthread_mutex_lock(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    queue->head = (head + count) % queue->capacity;
+    queue->count -= count;
+    int remaining = queue->count;
+    if (pthread_mutex_unlock(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    // Handle the rest in the next loop, so sessions can be checked in between
+    if (remaining > 0) {
+        value = 1;
+        if (write(queue->event, &value, sizeof(value)) < 0)
+            log_android(ANDROID_LOG_WARN, "Write event error %d: %s", errno, strerror(errno));
+    }
+
+    return count;
+}
+
+// Read up to a batch of packets into the pool, so new flows can be decided with one JNI call
+// Returns -1 on error, else the number of packets read
 int check_tun(const struct arguments *args,
               const struct epoll_event *ev,
               const int epoll_fd,
               int sessions, int maxsessions) {
+    if (args->queue != NULL)
+        return check_tun_queue(args, epoll_fd, sessions, maxsessions);
+
     // Check tun error
     if (ev->events & EPOLLERR) {
         log_android(ANDROID_LOG_ERROR, "tun %d exception", args->tun);
@@ -51,48 +137,60 @@ int check_tun(const struct arguments *args,
         return -1;
     }
 
-    // Check tun read
-    if (ev->events & EPOLLIN) {
-        uint8_t *buffer = ng_malloc(get_mtu(), "tun read");
-        ssize_t length = read(args->tun, buffer, get_mtu());
-        if (length < 0) {
-            ng_free(buffer, __FILE__, __LINE__);
+    if (!(ev->events & EPOLLIN))
+        return 0;
 
+    struct tun_pool *pool = args->pool;
+    int error = 0;
+    int count = 0;
+    int queued = 0;
+
+    // The tun is blocking, so check if there is more to read after the first packet
+    while (count < pool->batch && !args->ctx->stopping &&
+           (count == 0 || is_readable(args->tun))) {
+        uint8_t *buffer = pool->buffer + queued * pool->mtu;
+        ssize_t length = read(args->tun, buffer, pool->mtu);
+        if (length < 0) {
             log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
                         args->tun, errno, strerror(errno));
-            if (errno == EINTR || errno == EAGAIN)
-                // Retry later
-                return 0;
-            else {
+            if (errno != EINTR && errno != EAGAIN) {
                 report_exit(args, "tun %d read error %d: %s",
                             args->tun, errno, strerror(errno));
-                return -1;
+                error = 1;
             }
+            // Retry later
+            break;
         } else if (length > 0) {
+            count++;
+
             // Write pcap record
             if (pcap_file != NULL)
-                write_pcap_rec(buffer, (size_t) length);
+                write_pcap_rec(buffer, (size_t) length, -1);
 
             if (length > max_tun_msg) {
                 max_tun_msg = length;
                 log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
             }
 
-            // Handle IP from tun
-            handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
-
-            ng_free(buffer, __FILE__, __LINE__);
+            // Parse IP from tun, it will be handled after the batch has been decided
+            if (parse_ip(args, buffer, (size_t) length, sessions, maxsessions,
+                         &pool->packet[queued]))
+                queued++;
         } else {
             // tun eof
-            ng_free(buffer, __FILE__, __LINE__);
-
             log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
             report_exit(args, "tun %d empty read", args->tun);
-            return -1;
+            error = 1;
+            break;
         }
     }
 
-    return 0;
+    args->ctx->tun_wakeups++;
+    args->ctx->tun_packets += count;
+
+    handle_ip(args, pool->packet, queued, epoll_fd);
+
+    return (error ? -1 : count);
 }
 
 // https://en.wikipedia.org/wiki/IPv6_packet#Extension_headers
@@ -116,10 +214,11 @@ int is_upper_layer(int protocol) {
             protocol == IPPROTO_ICMPV6);
 }
 
-void handle_ip(const struct arguments *args,
-               const uint8_t *pkt, const size_t length,
-               const int epoll_fd,
-               int sessions, int maxsessions) {
+// Returns 1 if the packet needs to be handled, pkt needs to remain valid until then
+int parse_ip(const struct arguments *args,
+             uint8_t *pkt, const size_t length,
+             int sessions, int maxsessions,
+             struct ip_packet *packet) {
     uint8_t protocol;
     void *saddr;
     void *daddr;
@@ -135,7 +234,7 @@ void handle_ip(const struct arguments *args,
     if (version == 4) {
         if (length < sizeof(struct iphdr)) {
             log_android(ANDROID_LOG_WARN, "IP4 packet too short length %d", length);
-            return;
+            return 0;
         }
 
         struct iphdr *ip4hdr = (struct iphdr *) pkt;
@@ -147,7 +246,7 @@ void handle_ip(const struct arguments *args,
         if (ip4hdr->frag_off & IP_MF) {
             log_android(ANDROID_LOG_ERROR, "IP fragment offset %u",
                         (ip4hdr->frag_off & IP_OFFMASK) * 8);
-            return;
+            return 0;
         }
 
         uint8_t ipoptlen = (uint8_t) ((ip4hdr->ihl - 5) * 4);
@@ -156,19 +255,19 @@ void handle_ip(const struct arguments *args,
         if (ntohs(ip4hdr->tot_len) != length) {
             log_android(ANDROID_LOG_ERROR, "Invalid length %u header length %u",
                         length, ntohs(ip4hdr->tot_len));
-            return;
+            return 0;
         }
 
         if (loglevel < ANDROID_LOG_WARN) {
             if (!calc_checksum(0, (uint8_t *) ip4hdr, sizeof(struct iphdr))) {
                 log_android(ANDROID_LOG_ERROR, "Invalid IP checksum");
-                return;
+                return 0;
             }
         }
     } else if (version == 6) {
         if (length < sizeof(struct ip6_hdr)) {
             log_android(ANDROID_LOG_WARN, "IP6 packet too short length %d", length);
-            return;
+            return 0;
         }
 
         struct ip6_hdr *ip6hdr = (struct ip6_hdr *) pkt;
@@ -202,7 +301,7 @@ void handle_ip(const struct arguments *args,
         // TODO checksum
     } else {
         log_android(ANDROID_LOG_ERROR, "Unknown version %d", version);
-        return;
+        return 0;
     }
 
     inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
@@ -216,7 +315,7 @@ void handle_ip(const struct arguments *args,
     if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) {
         if (length - (payload - pkt) < ICMP_MINLEN) {
             log_android(ANDROID_LOG_WARN, "ICMP packet too short");
-            return;
+            return 0;
         }
 
         struct icmp *icmp = (struct icmp *) payload;
@@ -230,7 +329,7 @@ void handle_ip(const struct arguments *args,
     } else if (protocol == IPPROTO_UDP) {
         if (length - (payload - pkt) < sizeof(struct udphdr)) {
             log_android(ANDROID_LOG_WARN, "UDP packet too short");
-            return;
+            return 0;
         }
 
         struct udphdr *udp = (struct udphdr *) payload;
@@ -242,7 +341,7 @@ void handle_ip(const struct arguments *args,
     } else if (protocol == IPPROTO_TCP) {
         if (length - (payload - pkt) < sizeof(struct tcphdr)) {
             log_android(ANDROID_LOG_WARN, "TCP packet too short");
-            return;
+            return 0;
         }
 
         struct tcphdr *tcp = (struct tcphdr *) payload;
@@ -277,7 +376,7 @@ void handle_ip(const struct arguments *args,
             log_android(ANDROID_LOG_ERROR,
                         "%d of max %d sessions, dropping version %d protocol %d",
                         sessions, maxsessions, protocol, version);
-            return;
+            return 0;
         }
     }
 
@@ -316,222 +415,94 @@ void handle_ip(const struct arguments *args,
                 "Packet v%d %s/%u > %s/%u proto %d flags %s uid %d sni %s",
                 version, source, sport, dest, dport, protocol, flags, uid, server_name);
 
-    // Check if allowed
-    int allowed = 0;
-    struct allowed *redirect = NULL;
-    if (protocol == IPPROTO_UDP && has_udp_session(args, pkt, payload))
-        allowed = 1; // could be a lingering/blocked session
-    else if (protocol == IPPROTO_TCP && (!syn || (uid == 0 && dport == 53)) && *server_name == 0)
-        allowed = 1; // assume existing session
-    else {
-        jobject objPacket = create_packet(
-                args, version, protocol, flags, source, sport, dest, dport, data, uid, 0);
-        redirect = is_address_allowed(args, objPacket);
-        allowed = (redirect != NULL);
-        if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
-            redirect = NULL;
-        if (allowed && *server_name && is_domain_blocked(args, server_name))
-            allowed = 0;
-    }
-
-    // Handle allowed traffic
-    if (allowed) {
-        if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6)
-            handle_icmp(args, pkt, length, payload, uid, epoll_fd);
-        else if (protocol == IPPROTO_UDP)
-            handle_udp(args, pkt, length, payload, uid, redirect, epoll_fd);
-        else if (protocol == IPPROTO_TCP)
-            handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd);
-    } else {
-        if (protocol == IPPROTO_UDP)
-            block_udp(args, pkt, length, payload, uid);
-        else if (protocol == IPPROTO_TCP && *server_name != 0 && !allowed)
-            handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd); // RST
-
-        log_android(ANDROID_LOG_WARN, "Address v%d p%d %s/%u syn %d not allowed",
-                    version, protocol, dest, dport, syn);
-    }
-}
-
-jint get_uid(const int version, const int protocol,
-             const void *saddr, const uint16_t sport,
-             const void *daddr, const uint16_t dport) {
-    jint uid = -1;
-
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, daddr, dest, sizeof(dest));
-
-    struct timeval time;
-    gettimeofday(&time, NULL);
-    long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
-
-    // Check IPv6 table first
-    if (version == 4) {
-        int8_t saddr128[16];
-        memset(saddr128, 0, 10);
-        saddr128[10] = (uint8_t) 0xFF;
-        saddr128[11] = (uint8_t) 0xFF;
-        memcpy(saddr128 + 12, saddr, 4);
-
-        int8_t daddr128[16];
-        memset(daddr128, 0, 10);
-        daddr128[10] = (uint8_t) 0xFF;
-        daddr128[11] = (uint8_t) 0xFF;
-        memcpy(daddr128 + 12, daddr, 4);
-
-        uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport, source, dest, now);
-        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
-                    version, protocol, source, sport, dest, dport, uid);
-    }
+    // Check if allowed, the decision is made for the whole batch at once
+    packet->pkt = pkt;
+    packet->length = length;
+    packet->payload = payload;
+    packet->version = version;
+    packet->protocol = protocol;
+    packet->syn = syn;
+    packet->dport = dport;
+    packet->uid = uid;
+    strcpy(packet->dest, dest);
+    strcpy(packet->server_name, server_name);
+    packet->decision = -1;
+    packet->cached = 0;
+    packet->allowed = 1;
+    *packet->redirect.raddr = 0;
+    packet->redirect.rport = 0;
+
+    // UDP could be a lingering/blocked session, TCP without SYN is assumed to be an existing session
+    int existing =
+            ((protocol == IPPROTO_UDP && has_udp_session(args, pkt, payload)) ||
+             (protocol == IPPROTO_TCP && (!syn || (uid == 0 && dport == 53)) && *server_name == 0));
+    if (!existing) {
+        jlong daddr_hi;
+        jlong daddr_lo;
+        pack_address(version, daddr, &daddr_hi, &daddr_lo);
+        int verdict = get_verdict(args, version, protocol, daddr_hi, daddr_lo, dport, uid,
+                                  &packet->redirect);
+        if (verdict >= 0) {
+            packet->cached = 1;
+            packet->allowed = verdict;
+            return 1;
+        }
 
-    if (uid == -1) {
-        uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport, source, dest, now);
-        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
-                    version, protocol, source, sport, dest, dport, uid);
+        packet->decision = add_decision(
+                args, version, protocol, flags, source, sport, dest, dport, data, uid);
+        if (packet->decision < 0) {
+            log_android(ANDROID_LOG_ERROR, "Decision unavailable, dropping version %d protocol %d",
+                        version, protocol);
+            return 0;
+        }
     }
 
-    if (uid == -1)
-        log_android(ANDROID_LOG_WARN, "uid v%d p%d %s/%u > %s/%u => not found",
-                    version, protocol, source, sport, dest, dport);
-    else if (uid >= 0)
-        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d",
-                    version, protocol, source, sport, dest, dport, uid);
-
-    return uid;
+    return 1;
 }
 
-int uid_cache_size = 0;
-struct uid_cache_entry *uid_cache = NULL;
-
-jint get_uid_sub(const int version, const int protocol,
-                 const void *saddr, const uint16_t sport,
-                 const void *daddr, const uint16_t dport,
-                 const char *source, const char *dest,
-                 long now) {
-    // NETLINK is not available on Android due to SELinux policies :-(
-    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
-    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
-
-    static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-
-    int ws = (version == 4 ? 1 : 4);
-
-    // Check cache
-    for (int i = 0; i < uid_cache_size; i++)
-        if (now - uid_cache[i].time <= UID_MAX_AGE &&
-            uid_cache[i].version == version &&
-            uid_cache[i].protocol == protocol &&
-            uid_cache[i].sport == sport &&
-            (uid_cache[i].dport == dport || uid_cache[i].dport == 0) &&
-            (memcmp(uid_cache[i].saddr, saddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].saddr, zero, (size_t) (ws * 4)) == 0) &&
-            (memcmp(uid_cache[i].daddr, daddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].daddr, zero, (size_t) (ws * 4)) == 0)) {
-
-            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
-                        version, protocol, source, sport, dest, dport, uid_cache[i].uid);
-
-            return uid_cache[i].uid;
+void handle_ip(const struct arguments *args,
+               struct ip_packet *packet, int count,
+               const int epoll_fd) {
+    // Single JNI call for all new flows
+    decide(args);
+
+    for (int i = 0; i < count; i++) {
+        struct ip_packet *p = &packet[i];
+        const uint8_t *pkt = p->pkt;
+        const size_t length = p->length;
+        const uint8_t *payload = p->payload;
+        const uint8_t protocol = p->protocol;
+        const jint uid = p->uid;
+
+        int allowed = p->allowed;
+        struct allowed *redirect = NULL;
+        if (p->decision >= 0)
+            allowed = get_decision(args, p->decision, &p->redirect);
+        if (p->decision >= 0 || p->cached) {
+            if (allowed && *p->redirect.raddr != 0 && p->redirect.rport != 0)
+                redirect = &p->redirect;
+            if (allowed && *p->server_name && is_domain_blocked(args, p->server_name))
+                allowed = 0;
         }
 
-    // Get proc file name
-    char *fn = NULL;
-    if (protocol == IPPROTO_ICMP && version == 4)
-        fn = "/proc/net/icmp";
-    else if (protocol == IPPROTO_ICMPV6 && version == 6)
-        fn = "/proc/net/icmp6";
-    else if (protocol == IPPROTO_TCP)
-        fn = (version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6");
-    else if (protocol == IPPROTO_UDP)
-        fn = (version == 4 ? "/proc/net/udp" : "/proc/net/udp6");
-    else
-        return -1;
-
-    // Open proc file
-    FILE *fd = fopen(fn, "r");
-    if (fd == NULL) {
-        log_android(ANDROID_LOG_ERROR, "fopen %s error %d: %s", fn, errno, strerror(errno));
-        return -2;
-    }
-
-    jint uid = -1;
-
-    char line[250];
-    int fields;
-
-    char shex[16 * 2 + 1];
-    uint8_t _saddr[16];
-    int _sport;
-
-    char dhex[16 * 2 + 1];
-    uint8_t _daddr[16];
-    int _dport;
-
-    jint _uid;
-
-    // Scan proc file
-    int l = 0;
-    *line = 0;
-    int c = 0;
-    const char *fmt = (version == 4
-                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
-                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
-    while (fgets(line, sizeof(line), fd) != NULL) {
-        if (!l++)
-            continue;
-
-        fields = sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid);
-        if (fields == 5 && strlen(shex) == ws * 8 && strlen(dhex) == ws * 8) {
-            hex2bytes(shex, _saddr);
-            hex2bytes(dhex, _daddr);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
-
-            if (_sport == sport &&
-                (_dport == dport || _dport == 0) &&
-                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
-                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
-                uid = _uid;
-
-            for (; c < uid_cache_size; c++)
-                if (now - uid_cache[c].time > UID_MAX_AGE)
-                    break;
-
-            if (c >= uid_cache_size) {
-                if (uid_cache_size == 0)
-                    uid_cache = ng_malloc(sizeof(struct uid_cache_entry), "uid_cache init");
-                else
-                    uid_cache = ng_realloc(uid_cache,
-                                           sizeof(struct uid_cache_entry) *
-                                           (uid_cache_size + 1), "uid_cache extend");
-                c = uid_cache_size;
-                uid_cache_size++;
-            }
-
-            uid_cache[c].version = (uint8_t) version;
-            uid_cache[c].protocol = (uint8_t) protocol;
-            memcpy(uid_cache[c].saddr, _saddr, (size_t) (ws * 4));
-            uid_cache[c].sport = (uint16_t) _sport;
-            memcpy(uid_cache[c].daddr, _daddr, (size_t) (ws * 4));
-            uid_cache[c].dport = (uint16_t) _dport;
-            uid_cache[c].uid = _uid;
-            uid_cache[c].time = now;
+        // Handle allowed traffic
+        if (allowed) {
+            if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6)
+                handle_icmp(args, pkt, length, payload, uid, epoll_fd);
+            else if (protocol == IPPROTO_UDP)
+                handle_udp(args, pkt, length, payload, uid, redirect, epoll_fd);
+            else if (protocol == IPPROTO_TCP)
+                handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd);
         } else {
-            log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
-            return -2;
+            if (protocol == IPPROTO_UDP)
+                block_udp(args, pkt, length, payload, uid);
+            else if (protocol == IPPROTO_TCP && *p->server_name != 0 && !allowed)
+                handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd); // RST
+
+            log_android(ANDROID_LOG_WARN, "Address v%d p%d %s/%u syn %d not allowed",
+                        p->version, protocol, p->dest, p->dport, p->syn);
         }
     }
 
-    if (fclose(fd))
-        log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
-
-    return uid;
+    args->decisions->count = 0;
 }
@@ -35,12 +35,16 @@ extern int max_tun_msg;
 extern FILE *pcap_file;
 extern size_t pcap_record_size;
 extern long pcap_file_size;
+extern int pcap_files;
+extern int pcap_ng;
+extern pthread_mutex_t pcap_lock;
+extern struct pcap_ring pcap_ring;
 
-extern int uid_cache_size;
-extern struct uid_cache_entry *uid_cache;
+extern struct uid_cache uid_cache;
 
 // JNI
 
+JavaVM *jvm = NULL;
 jclass clsPacket;
 jclass clsAllowed;
 jclass clsRR;
@@ -55,6 +59,9 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
         return -1;
     }
 
+    // To attach worker threads
+    jvm = vm;
+
     const char *packet = "eu/faircode/netguard/Packet";
     clsPacket = jniGlobalRef(env, jniFindClass(env, packet));
     ng_add_alloc(clsPacket, "clsPacket");
@@ -112,6 +119,7 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
         JNIEnv *env, jobject instance, jint sdk) {
     struct context *ctx = ng_calloc(1, sizeof(struct context), "init");
     ctx->sdk = sdk;
+    init_verdicts(ctx);
 
     loglevel = ANDROID_LOG_WARN;
 
@@ -121,8 +129,10 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
     *socks5_password = 0;
     pcap_file = NULL;
 
-    if (pthread_mutex_init(&ctx->lock, NULL))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    ctx->shards = 1;
+    for (int i = 0; i < SHARD_MAX; i++)
+        if (pthread_mutex_init(&ctx->shard[i].lock, NULL))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
 
     // Create signal pipe
     if (pipe(ctx->pipefds))
@@ -153,10 +163,24 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1start(
 
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
-        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode) {
+        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode,
+        jint batch, jint workers) {
     struct context *ctx = (struct context *) context;
 
-    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d", tun, fwd53, loglevel);
+    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d batch %d workers %d",
+                tun, fwd53, loglevel, batch, workers);
+
+    if (workers < 1)
+        workers = 1;
+    if (workers > SHARD_MAX)
+        workers = SHARD_MAX;
+
+    // Flows would map to other shards
+    if (workers != ctx->shards) {
+        log_android(ANDROID_LOG_WARN, "Clearing sessions of %d shards", ctx->shards);
+        clear(ctx);
+        ctx->shards = workers;
+    }
 
     // Set blocking
     int flags = fcntl(tun, F_GETFL, 0);
@@ -171,8 +195,18 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
     args->tun = tun;
     args->fwd53 = fwd53;
     args->rcode = rcode;
+    args->batch = batch;
+    args->pool = NULL;
+    args->udp_pool = NULL;
+    args->decisions = NULL;
     args->ctx = ctx;
-    handle_events(args);
+    args->shard = &ctx->shard[0];
+    args->queue = NULL;
+
+    if (workers > 1)
+        run_workers(args, workers);
+    else
+        handle_events(args);
 }
 
 JNIEXPORT void JNICALL
@@ -191,6 +225,7 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1clear(
         JNIEnv *env, jobject instance, jlong context) {
     struct context *ctx = (struct context *) context;
     clear(ctx);
+    invalidate_verdicts(ctx);
 }
 
 JNIEXPORT jint JNICALL
@@ -203,29 +238,24 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
         JNIEnv *env, jobject instance, jlong context) {
     struct context *ctx = (struct context *) context;
 
-    if (pthread_mutex_lock(&ctx->lock))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
-
-    jintArray jarray = (*env)->NewIntArray(env, 5);
+    jintArray jarray = (*env)->NewIntArray(env, 15);
     jint *jcount = (*env)->GetIntArrayElements(env, jarray, NULL);
 
-    struct ng_session *s = ctx->ng_session;
-    while (s != NULL) {
-        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-            if (!s->icmp.stop)
-                jcount[0]++;
-        } else if (s->protocol == IPPROTO_UDP) {
-            if (s->udp.state == UDP_ACTIVE)
-                jcount[1]++;
-        } else if (s->protocol == IPPROTO_TCP) {
-            if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                jcount[2]++;
-        }
-        s = s->next;
-    }
+    jcount[0] = 0;
+    jcount[1] = 0;
+    jcount[2] = 0;
+    for (int i = 0; i < SHARD_MAX; i++) {
+        struct shard *shard = &ctx->shard[i];
+        if (pthread_mutex_lock(&shard->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-    if (pthread_mutex_unlock(&ctx->lock))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        jcount[0] += shard->isessions;
+        jcount[1] += shard->usessions;
+        jcount[2] += shard->tsessions;
+
+        if (pthread_mutex_unlock(&shard->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+    }
 
     jcount[3] = 0;
     DIR *d = opendir("/proc/self/fd");
@@ -242,6 +272,17 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
     getrlimit(RLIMIT_NOFILE, &rlim);
     jcount[4] = (jint) rlim.rlim_cur;
 
+    jcount[5] = (jint) ctx->hosts.native;
+    jcount[6] = (jint) ctx->verdicts.hits;
+    jcount[7] = (jint) ctx->verdicts.misses;
+    jcount[8] = (jint) ctx->tun_wakeups;
+    jcount[9] = (jint) ctx->tun_packets;
+    jcount[10] = (jint) uid_cache.hits;
+    jcount[11] = (jint) uid_cache.misses;
+    jcount[12] = (jint) uid_cache.evictions;
+    jcount[13] = (jint) pcap_ring.records;
+    jcount[14] = (jint) pcap_ring.dropped;
+
     (*env)->ReleaseIntArrayElements(env, jarray, jcount, 0);
     return jarray;
 }
@@ -249,59 +290,43 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1pcap(
         JNIEnv *env, jclass type,
-        jstring name_, jint record_size, jint file_size) {
+        jstring name_, jint record_size, jint file_size, jint files, jboolean pcapng) {
+
+    // Write queued records to the current file
+    // The writer thread takes the lock, so stop it before taking the lock
+    stop_pcap_writer();
 
     pcap_record_size = (size_t) record_size;
     pcap_file_size = file_size;
+    pcap_files = (files < 1 ? 1 : (files > PCAP_FILES_MAX ? PCAP_FILES_MAX : files));
 
-    //if (pthread_mutex_lock(&lock))
-    //    log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    if (pthread_mutex_lock(&pcap_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
     if (name_ == NULL) {
-        if (pcap_file != NULL) {
-            int flags = fcntl(fileno(pcap_file), F_GETFL, 0);
-            if (flags < 0 || fcntl(fileno(pcap_file), F_SETFL, flags & ~O_NONBLOCK) < 0)
-                log_android(ANDROID_LOG_ERROR, "PCAP fcntl ~O_NONBLOCK error %d: %s",
-                            errno, strerror(errno));
-
-            if (fsync(fileno(pcap_file)))
-                log_android(ANDROID_LOG_ERROR, "PCAP fsync error %d: %s", errno, strerror(errno));
-
-            if (fclose(pcap_file))
-                log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
-
-            pcap_file = NULL;
-        }
+        if (pcap_file != NULL)
+            close_pcap();
         log_android(ANDROID_LOG_WARN, "PCAP disabled");
     } else {
         const char *name = (*env)->GetStringUTFChars(env, name_, 0);
         ng_add_alloc(name, "name");
-        log_android(ANDROID_LOG_WARN, "PCAP file %s record size %d truncate @%ld",
-                    name, pcap_record_size, pcap_file_size);
-
-        pcap_file = fopen(name, "ab+");
-        if (pcap_file == NULL)
-            log_android(ANDROID_LOG_ERROR, "PCAP fopen error %d: %s", errno, strerror(errno));
-        else {
-            int flags = fcntl(fileno(pcap_file), F_GETFL, 0);
-            if (flags < 0 || fcntl(fileno(pcap_file), F_SETFL, flags | O_NONBLOCK) < 0)
-                log_android(ANDROID_LOG_ERROR, "PCAP fcntl O_NONBLOCK error %d: %s",
-                            errno, strerror(errno));
-
-            long size = ftell(pcap_file);
-            if (size == 0) {
-                log_android(ANDROID_LOG_WARN, "PCAP initialize");
-                write_pcap_hdr();
-            } else
-                log_android(ANDROID_LOG_WARN, "PCAP current size %ld", size);
-        }
+        log_android(ANDROID_LOG_WARN, "PCAP%s file %s record size %d files %d of %ld",
+                    (pcapng ? "NG" : ""), name, pcap_record_size, pcap_files, pcap_file_size);
+
+        pcap_ng = pcapng;
+        open_pcap(name);
 
         (*env)->ReleaseStringUTFChars(env, name_, name);
         ng_delete_alloc(name, __FILE__, __LINE__);
     }
 
-    //if (pthread_mutex_unlock(&lock))
-    //    log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+    int enabled = (pcap_file != NULL);
+
+    if (pthread_mutex_unlock(&pcap_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (enabled)
+        start_pcap_writer();
 }
 
 JNIEXPORT void JNICALL
@@ -331,6 +356,20 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1socks5(JNIEnv *env, jobject insta
     ng_delete_alloc(password, __FILE__, __LINE__);
 }
 
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1hosts(
+        JNIEnv *env, jobject instance, jlong context, jobject buffer, jboolean subdomains) {
+    struct context *ctx = (struct context *) context;
+    set_hosts(env, ctx, buffer, subdomains);
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1verdicts(
+        JNIEnv *env, jobject instance, jlong context, jboolean enabled) {
+    struct context *ctx = (struct context *) context;
+    set_verdicts(ctx, enabled);
+}
+
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
         JNIEnv *env, jobject instance, jlong context) {
@@ -338,18 +377,18 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
     log_android(ANDROID_LOG_INFO, "Done");
 
     clear(ctx);
+    clear_hosts(env, ctx);
+    clear_verdicts(ctx);
 
-    if (pthread_mutex_destroy(&ctx->lock))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    for (int i = 0; i < SHARD_MAX; i++)
+        if (pthread_mutex_destroy(&ctx->shard[i].lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
 
     for (int i = 0; i < 2; i++)
         if (close(ctx->pipefds[i]))
             log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
 
-    if (uid_cache != NULL)
-        ng_free(uid_cache, __FILE__, __LINE__);
-    uid_cache_size = 0;
-    uid_cache = NULL;
+    clear_uid_cache();
 
     ng_free(ctx, __FILE__, __LINE__);
 }
@@ -655,6 +694,12 @@ void dns_resolved(const struct arguments *args,
 static jmethodID midIsDomainBlocked = NULL;
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name) {
+    struct hosts *hosts = &args->ctx->hosts;
+    if (hosts->enabled) {
+        __sync_add_and_fetch(&hosts->native, 1);
+        return (jboolean) is_hosts_blocked(hosts, name);
+    }
+
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -738,73 +783,6 @@ jint get_uid_q(const struct arguments *args,
     return juid;
 }
 
-static jmethodID midIsAddressAllowed = NULL;
-jfieldID fidRaddr = NULL;
-jfieldID fidRport = NULL;
-struct allowed allowed;
-
-struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
-    ng_add_alloc(clsService, "clsService");
-
-    const char *signature = "(Leu/faircode/netguard/Packet;)Leu/faircode/netguard/Allowed;";
-    if (midIsAddressAllowed == NULL)
-        midIsAddressAllowed = jniGetMethodID(args->env, clsService, "isAddressAllowed", signature);
-
-    jobject jallowed = (*args->env)->CallObjectMethod(
-            args->env, args->instance, midIsAddressAllowed, jpacket);
-    ng_add_alloc(jallowed, "jallowed");
-    jniCheckException(args->env);
-
-    if (jallowed != NULL) {
-        if (fidRaddr == NULL) {
-            const char *string = "Ljava/lang/String;";
-            fidRaddr = jniGetFieldID(args->env, clsAllowed, "raddr", string);
-            fidRport = jniGetFieldID(args->env, clsAllowed, "rport", "I");
-        }
-
-        jstring jraddr = (*args->env)->GetObjectField(args->env, jallowed, fidRaddr);
-        ng_add_alloc(jraddr, "jraddr");
-        if (jraddr == NULL)
-            *allowed.raddr = 0;
-        else {
-            const char *raddr = (*args->env)->GetStringUTFChars(args->env, jraddr, NULL);
-            ng_add_alloc(raddr, "raddr");
-            strcpy(allowed.raddr, raddr);
-            (*args->env)->ReleaseStringUTFChars(args->env, jraddr, raddr);
-            ng_delete_alloc(raddr, __FILE__, __LINE__);
-        }
-        allowed.rport = (uint16_t) (*args->env)->GetIntField(args->env, jallowed, fidRport);
-
-        (*args->env)->DeleteLocalRef(args->env, jraddr);
-        ng_delete_alloc(jraddr, __FILE__, __LINE__);
-    }
-
-
-    (*args->env)->DeleteLocalRef(args->env, jpacket);
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    (*args->env)->DeleteLocalRef(args->env, jallowed);
-    ng_delete_alloc(jpacket, __FILE__, __LINE__);
-    ng_delete_alloc(clsService, __FILE__, __LINE__);
-    ng_delete_alloc(jallowed, __FILE__, __LINE__);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "is_address_allowed %f", mselapsed);
-#endif
-
-    return (jallowed == NULL ? NULL : &allowed);
-}
-
 jmethodID midInitPacket = NULL;
 
 jfieldID fidTime = NULL;
@@ -814,11 +792,45 @@ jfieldID fidFlags = NULL;
 jfieldID fidSaddr = NULL;
 jfieldID fidSport = NULL;
 jfieldID fidDaddr = NULL;
+jfieldID fidDaddrHi = NULL;
+jfieldID fidDaddrLo = NULL;
 jfieldID fidDport = NULL;
 jfieldID fidData = NULL;
 jfieldID fidUid = NULL;
 jfieldID fidAllowed = NULL;
 
+void pack_address(jint version, const void *addr, jlong *hi, jlong *lo) {
+    *hi = 0;
+    *lo = 0;
+    if (version == 4)
+        *lo = (jlong) ntohl(((const struct in_addr *) addr)->s_addr);
+    else if (version == 6) {
+        const uint8_t *a = ((const struct in6_addr *) addr)->s6_addr;
+        uint64_t h = 0;
+        uint64_t l = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | a[i];
+            l = (l << 8) | a[8 + i];
+        }
+        *hi = (jlong) h;
+        *lo = (jlong) l;
+    }
+}
+
+void get_packed_address(jint version, const char *addr, jlong *hi, jlong *lo) {
+    *hi = 0;
+    *lo = 0;
+    if (version == 4) {
+        struct in_addr ip4;
+        if (inet_pton(AF_INET, addr, &ip4) == 1)
+            pack_address(version, &ip4, hi, lo);
+    } else if (version == 6) {
+        struct in6_addr ip6;
+        if (inet_pton(AF_INET6, addr, &ip6) == 1)
+            pack_address(version, &ip6, hi, lo);
+    }
+}
+
 jobject create_packet(const struct arguments *args,
                       jint version,
                       jint protocol,
@@ -859,6 +871,8 @@ jobject create_packet(const struct arguments *args,
         fidSaddr = jniGetFieldID(env, clsPacket, "saddr", string);
         fidSport = jniGetFieldID(env, clsPacket, "sport", "I");
         fidDaddr = jniGetFieldID(env, clsPacket, "daddr", string);
+        fidDaddrHi = jniGetFieldID(env, clsPacket, "daddr_hi", "J");
+        fidDaddrLo = jniGetFieldID(env, clsPacket, "daddr_lo", "J");
         fidDport = jniGetFieldID(env, clsPacket, "dport", "I");
         fidData = jniGetFieldID(env, clsPacket, "data", string);
         fidUid = jniGetFieldID(env, clsPacket, "uid", "I");
@@ -877,6 +891,11 @@ jobject create_packet(const struct arguments *args,
     ng_add_alloc(jdest, "jdest");
     ng_add_alloc(jdata, "jdata");
 
+    // Raw destination address, so Java can look up IP rules without parsing
+    jlong hi = 0;
+    jlong lo = 0;
+    get_packed_address(version, dest, &hi, &lo);
+
     (*env)->SetLongField(env, jpacket, fidTime, t);
     (*env)->SetIntField(env, jpacket, fidVersion, version);
     (*env)->SetIntField(env, jpacket, fidProtocol, protocol);
@@ -884,6 +903,8 @@ jobject create_packet(const struct arguments *args,
     (*env)->SetObjectField(env, jpacket, fidSaddr, jsource);
     (*env)->SetIntField(env, jpacket, fidSport, sport);
     (*env)->SetObjectField(env, jpacket, fidDaddr, jdest);
+    (*env)->SetLongField(env, jpacket, fidDaddrHi, hi);
+    (*env)->SetLongField(env, jpacket, fidDaddrLo, lo);
     (*env)->SetIntField(env, jpacket, fidDport, dport);
     (*env)->SetObjectField(env, jpacket, fidData, jdata);
     (*env)->SetIntField(env, jpacket, fidUid, uid);
@@ -1,6 +1,7 @@
 #include <jni.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <limits.h>
 #include <string.h>
 #include <ctype.h>
 #include <time.h>
@@ -15,6 +16,7 @@
 #include <sys/ioctl.h>
 #include <sys/socket.h>
 #include <sys/epoll.h>
+#include <sys/eventfd.h>
 #include <dlfcn.h>
 #include <sys/stat.h>
 #include <sys/resource.h>
@@ -30,6 +32,10 @@
 #include <netinet/ip_icmp.h>
 #include <netinet/icmp6.h>
 
+#include <linux/netlink.h>
+#include <linux/sock_diag.h>
+#include <linux/inet_diag.h>
+
 #include <android/log.h>
 #include <sys/system_properties.h>
 
@@ -42,7 +48,9 @@
 #define EPOLL_EVENTS 20
 #define EPOLL_MIN_CHECK 100 // milliseconds
 
-#define TUN_YIELD 10 // packets
+#define TUN_BATCH 32 // packets
+#define TUN_BATCH_MAX 128 // packets
+#define TUN_QUEUE 2 // batches per worker queue
 
 #define ICMP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
 #define ICMP6_MAXMSG (IPV6_MAXPACKET - 40 - 8) // bytes (socket)
@@ -55,19 +63,27 @@
 #define UDP_TIMEOUT_ANY 300 // seconds
 #define UDP_KEEP_TIMEOUT 60 // seconds
 #define UDP_YIELD 10 // packets
+#define UDP_HEADROOM (sizeof(struct ip6_hdr) + sizeof(struct udphdr)) // bytes
 
 #define TCP_INIT_TIMEOUT 20 // seconds ~net.inet.tcp.keepinit
 #define TCP_IDLE_TIMEOUT 3600 // seconds ~net.inet.tcp.keepidle
 #define TCP_CLOSE_TIMEOUT 20 // seconds
 #define TCP_KEEP_TIMEOUT 300 // seconds
+#define TCP_FORWARD_MIN 16384 // bytes
+#define TCP_FORWARD_MAX (4 * 1024 * 1024) // bytes
 // https://en.wikipedia.org/wiki/Maximum_segment_lifetime
 
+#define SESSION_HASH 1024 // buckets
+#define SESSION_WHEEL 512 // seconds, one slot per second
 #define SESSION_LIMIT 40 // percent
 #define SESSION_MAX (1024 * SESSION_LIMIT / 100) // number
 
+#define SHARD_MAX 8 // worker threads
+
 #define SEND_BUF_DEFAULT 163840 // bytes
 
 #define UID_MAX_AGE 30000 // milliseconds
+#define UID_CACHE 1024 // entries
 
 #define SOCKS5_NONE 1
 #define SOCKS5_HELLO 2
@@ -75,12 +91,82 @@
 #define SOCKS5_CONNECT 4
 #define SOCKS5_CONNECTED 5
 
-struct context {
+#define DECISION_BATCH TUN_BATCH_MAX // flows per JNI call, at most one per packet
+#define DECISION_SIZE 256 // bytes per flow
+
+#define VERDICT_CACHE 1024 // entries
+#define VERDICT_PROBE 4 // entries
+#define VERDICT_TTL 10000 // milliseconds
+
+#define HOSTS_MAGIC 0x4E474849
+#define HOSTS_VERSION 2
+#define HOSTS_HEADER 32 // bytes
+
+struct hosts {
+    jobject buffer;
+    const uint8_t *data;
+    uint32_t count;
+    uint32_t names;
+    jboolean subdomains;
+    int enabled;
+    jlong native; // lookups without JNI call
+};
+
+struct allowed {
+    char raddr[INET6_ADDRSTRLEN + 1];
+    uint16_t rport; // host notation
+};
+
+// Verdicts of Java for recently seen flows
+// Entries of an older generation are invalid, Java increments the generation on every rule change
+struct verdict {
+    jlong daddr_hi;
+    jlong daddr_lo;
+    jint uid;
+    jint version;
+    jint protocol;
+    jint dport;
+    uint32_t generation;
+    int allowed;
+    long long time;
+    struct allowed redirect;
+};
+
+struct verdicts {
+    pthread_mutex_t lock;
+    struct verdict *entry;
+    volatile int enabled;
+    volatile uint32_t generation;
+    jlong hits;
+    jlong misses;
+};
+
+// Sessions handled by one event loop, a flow always maps to the same shard
+struct shard {
     pthread_mutex_t lock;
+    struct ng_session *ng_session;
+    struct ng_session *ng_hash[SESSION_HASH];
+    struct ng_session *ng_dirty; // changed since the previous loop
+    struct ng_session *ng_timer[SESSION_WHEEL];
+    time_t ng_timer_min[SESSION_WHEEL]; // earliest deadline of a slot or lower, 0 if none
+    time_t ng_timer_time; // last second checked
+    int ng_scale; // timeout scale of the scheduled deadlines
+    int isessions; // active ICMP sessions
+    int usessions; // active UDP sessions
+    int tsessions; // active TCP sessions
+};
+
+struct context {
     int pipefds[2];
     int stopping;
     int sdk;
-    struct ng_session *ng_session;
+    struct shard shard[SHARD_MAX];
+    int shards; // in use
+    jlong tun_wakeups; // tun reads after epoll
+    jlong tun_packets; // packets read from tun
+    jlong tun_dropped; // packets dropped because a worker queue was full
+    struct hosts hosts;
+    struct verdicts verdicts;
 };
 
 struct arguments {
@@ -90,20 +176,61 @@ struct arguments {
     jboolean fwd53;
     jint rcode;
     struct context *ctx;
+    struct decisions *decisions;
+    jint batch;
+    struct tun_pool *pool;
+    struct udp_pool *udp_pool;
+    struct shard *shard;
+    struct tun_queue *queue; // NULL if reading the tun
 };
 
-struct allowed {
-    char raddr[INET6_ADDRSTRLEN + 1];
-    uint16_t rport; // host notation
+// Flow descriptor shared with Java through a direct buffer, native byte order
+// Java fills in allowed, rport and raddr, see ServiceSinkhole.areAddressesAllowed
+struct decision {
+    jint version;
+    jint protocol;
+    jint sport;
+    jint dport;
+    jint uid;
+    jint allowed;
+    jint rport;
+    jint reserved;
+    jlong time;
+    jlong daddr_hi;
+    jlong daddr_lo;
+    char flags[16];
+    char data[32];
+    char source[48];
+    char dest[48];
+    char raddr[48];
+    uint8_t padding[8];
+};
+
+struct decisions {
+    struct decision *flow;
+    jobject buffer;
+    int count;
+    jlong calls; // JNI calls
+    jlong flows; // flows decided
+};
+
+// Received range of sequence numbers, end exclusive
+struct range {
+    uint32_t start;
+    uint32_t end;
+    uint8_t psh;
 };
 
-struct segment {
-    uint32_t seq;
-    uint16_t len;
-    uint16_t sent;
-    int psh;
-    uint8_t *data;
-    struct segment *next;
+// Data received from tun waiting to be forwarded to the socket
+// Bytes are stored at their sequence number modulo the size of the buffer,
+// and the received ranges are kept sorted and merged, so only holes are separate ranges
+struct forward {
+    uint8_t *buffer;
+    uint32_t size; // bytes, power of 2
+    struct range *range;
+    int count;
+    int capacity;
+    uint32_t queued; // bytes
 };
 
 struct icmp_session {
@@ -191,7 +318,7 @@ struct tcp_session {
 
     uint8_t state;
     uint8_t socks5;
-    struct segment *forward;
+    struct forward forward;
 };
 
 struct ng_session {
@@ -204,6 +331,17 @@ struct ng_session {
     jint socket;
     struct epoll_event ev;
     struct ng_session *next;
+    struct ng_session *prev;
+    struct ng_session *hnext; // hash bucket
+    struct ng_session *tnext; // timer slot
+    struct ng_session *tprev;
+    struct ng_session *dnext; // dirty list
+    struct ng_session *dprev;
+    time_t deadline;
+    int timer; // slot, -1 if not scheduled
+    uint8_t dirty;
+    uint8_t active; // counted as active
+    uint8_t recheck; // waiting for a window update
 };
 
 struct uid_cache_entry {
@@ -214,7 +352,21 @@ struct uid_cache_entry {
     uint8_t daddr[16];
     uint16_t dport;
     jint uid;
-    long time;
+    long time; // added
+    struct uid_cache_entry *hnext; // hash bucket
+    struct uid_cache_entry *prev; // recently used list
+    struct uid_cache_entry *next; // or free list
+};
+
+struct uid_cache {
+    struct uid_cache_entry *entry; // UID_CACHE entries
+    struct uid_cache_entry *hash[UID_CACHE];
+    struct uid_cache_entry *head; // most recently used
+    struct uid_cache_entry *tail; // least recently used
+    struct uid_cache_entry *free;
+    jlong hits;
+    jlong misses;
+    jlong evictions; // unexpired entries replaced
 };
 
 // IPv6
@@ -253,6 +405,75 @@ typedef struct pcaprec_hdr_s {
 
 #define LINKTYPE_RAW 101
 
+// PCAPNG
+// https://www.ietf.org/archive/id/draft-tuexen-opsawg-pcapng-05.html
+
+#define PCAPNG_SHB 0x0A0D0D0A
+#define PCAPNG_IDB 0x00000001
+#define PCAPNG_EPB 0x00000006
+#define PCAPNG_MAGIC 0x1A2B3C4D
+#define PCAPNG_OPT_END 0
+#define PCAPNG_OPT_COMMENT 1
+
+typedef struct pcapng_shb_s {
+    guint32_t block_type;
+    guint32_t block_length;
+    guint32_t byte_order_magic;
+    guint16_t version_major;
+    guint16_t version_minor;
+    int64_t section_length;
+    guint32_t block_length_trailer;
+} __packed pcapng_shb_s;
+
+typedef struct pcapng_idb_s {
+    guint32_t block_type;
+    guint32_t block_length;
+    guint16_t linktype;
+    guint16_t reserved;
+    guint32_t snaplen;
+    guint32_t block_length_trailer;
+} __packed pcapng_idb_s;
+
+typedef struct pcapng_epb_s {
+    guint32_t block_type;
+    guint32_t block_length;
+    guint32_t interface_id;
+    guint32_t ts_high;
+    guint32_t ts_low;
+    guint32_t captured_len;
+    guint32_t original_len;
+} __packed pcapng_epb_s;
+
+typedef struct pcapng_opt_s {
+    guint16_t code;
+    guint16_t length;
+} __packed pcapng_opt_s;
+
+#define PCAP_FILES_MAX 10
+
+#define PCAP_RING (1024 * 1024) // bytes, power of 2
+#define PCAP_PAD 0x80000000 // slot length flag, unused space up to the end of the ring
+#define PCAP_FLUSH 100 // milliseconds
+#define PCAP_WRITE 65536 // bytes, the write buffer is twice as large to fit the largest record
+
+// Records waiting to be written to the pcap file
+// A slot is the slot length, the uid and the pcap record
+// Packet threads reserve a slot by moving the head and set the length of the slot when filled in,
+// the writer thread writes filled in slots, zeroes them and moves the tail
+struct pcap_ring {
+    uint8_t *buffer;
+    volatile uint64_t head; // reserved bytes
+    volatile uint64_t tail; // released bytes
+    volatile int enabled;
+    int stopping;
+    int started;
+    pthread_t thread;
+    pthread_mutex_t lock;
+    pthread_cond_t cond;
+    jlong records; // written
+    jlong dropped; // ring full
+};
+
 // TLS
 
 #define TLS_SNI_LENGTH 255
@@ -265,6 +486,62 @@ int get_sni(
         const uint16_t datalen,
         char *server_name);
 
+// Packet read from tun, parsed and waiting for a decision
+struct ip_packet {
+    uint8_t *pkt;
+    size_t length;
+    uint8_t *payload;
+    uint8_t version;
+    uint8_t protocol;
+    int syn;
+    uint16_t dport;
+    jint uid;
+    char dest[INET6_ADDRSTRLEN + 1];
+    char server_name[TLS_SNI_LENGTH + 1];
+    int decision; // index or -1 if no decision needed
+    int cached;
+    int allowed;
+    struct allowed redirect;
+};
+
+// Buffers for a batch of packets read from tun, reused for every batch
+struct tun_pool {
+    uint8_t *buffer; // batch * mtu bytes
+    struct ip_packet *packet;
+    int batch;
+    size_t mtu;
+};
+
+// Buffers to receive a batch of datagrams with a single call
+// There is room in front of the data to build the IP and UDP header for the tun
+struct udp_pool {
+    uint8_t *buffer; // UDP_YIELD * size bytes
+    size_t size;
+    struct mmsghdr msg[UDP_YIELD];
+    struct iovec iov[UDP_YIELD];
+    jlong calls; // recvmmsg calls
+    jlong datagrams; // datagrams received
+};
+
+// Packets read from tun by the reader waiting to be handled by a worker
+// There is a single reader and a single worker per queue,
+// so slots are only locked for updating the head and count
+struct tun_queue {
+    pthread_mutex_t lock;
+    uint8_t *buffer; // capacity * mtu bytes
+    size_t *length;
+    int head;
+    int count;
+    int capacity;
+    size_t mtu;
+    int event; // eventfd, signaled when packets were queued
+};
+
+struct worker {
+    pthread_t thread;
+    struct tun_queue queue;
+};
+
 // DNS
 
 #define DNS_QCLASS_IN 1
@@ -359,6 +636,25 @@ void check_allowed(const struct arguments *args);
 
 void clear(struct context *ctx);
 
+void lock_shards(struct context *ctx);
+
+void unlock_shards(struct context *ctx);
+
+struct ng_session *get_session_bucket(const struct shard *shard,
+                                      uint8_t protocol, int version,
+                                      const void *saddr, __be16 sport,
+                                      const void *daddr, __be16 dport);
+
+void add_session(struct shard *shard, struct ng_session *s);
+
+void remove_session(struct shard *shard, struct ng_session *s);
+
+void touch_session(struct shard *shard, struct ng_session *s);
+
+int get_sessions(const struct shard *shard);
+
+void run_workers(struct arguments *args, int workers);
+
 int check_icmp_session(const struct arguments *args,
                        struct ng_session *s,
                        int sessions, int maxsessions);
@@ -383,6 +679,10 @@ uint16_t get_mtu();
 
 uint16_t get_default_mss(int version);
 
+void init_tun_pool(struct arguments *args);
+
+void clear_tun_pool(struct arguments *args);
+
 int check_tun(const struct arguments *args,
               const struct epoll_event *ev,
               const int epoll_fd,
@@ -390,6 +690,10 @@ int check_tun(const struct arguments *args,
 
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev);
 
+void init_udp_pool(struct arguments *args);
+
+void clear_udp_pool(struct arguments *args);
+
 void check_udp_socket(const struct arguments *args, const struct epoll_event *ev);
 
 int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char *qname);
@@ -411,10 +715,14 @@ int is_lower_layer(int protocol);
 
 int is_upper_layer(int protocol);
 
+int parse_ip(const struct arguments *args,
+             uint8_t *pkt, size_t length,
+             int sessions, int maxsessions,
+             struct ip_packet *packet);
+
 void handle_ip(const struct arguments *args,
-               const uint8_t *buffer, size_t length,
-               const int epoll_fd,
-               int sessions, int maxsessions);
+               struct ip_packet *packet, int count,
+               const int epoll_fd);
 
 jboolean handle_icmp(const struct arguments *args,
                      const uint8_t *pkt, size_t length,
@@ -480,6 +788,9 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
 ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                   uint8_t *data, size_t datalen);
 
+ssize_t write_udp_headroom(const struct arguments *args, const struct udp_session *cur,
+                           uint8_t *data, size_t datalen);
+
 ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                   const uint8_t *data, size_t datalen,
                   int syn, int ack, int fin, int rst);
@@ -498,6 +809,8 @@ jint get_uid_sub(const int version, const int protocol,
                  const char *source, const char *dest,
                  long now);
 
+void clear_uid_cache();
+
 int protect_socket(const struct arguments *args, int socket);
 
 uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length);
@@ -525,6 +838,12 @@ void dns_resolved(const struct arguments *args,
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name);
 
+void set_hosts(JNIEnv *env, struct context *ctx, jobject buffer, jboolean subdomains);
+
+void clear_hosts(JNIEnv *env, struct context *ctx);
+
+int is_hosts_blocked(const struct hosts *hosts, const char *name);
+
 jint get_uid_q(const struct arguments *args,
                jint version,
                jint protocol,
@@ -533,7 +852,43 @@ jint get_uid_q(const struct arguments *args,
                const char *dest,
                jint dport);
 
-struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket);
+void init_decisions(struct arguments *args);
+
+void clear_decisions(struct arguments *args);
+
+int add_decision(const struct arguments *args,
+                 jint version,
+                 jint protocol,
+                 const char *flags,
+                 const char *source,
+                 jint sport,
+                 const char *dest,
+                 jint dport,
+                 const char *data,
+                 jint uid);
+
+void decide(const struct arguments *args);
+
+int get_decision(const struct arguments *args, int index, struct allowed *redirect);
+
+void init_verdicts(struct context *ctx);
+
+void clear_verdicts(struct context *ctx);
+
+void set_verdicts(struct context *ctx, int enabled);
+
+void invalidate_verdicts(struct context *ctx);
+
+int get_verdict(const struct arguments *args,
+                jint version, jint protocol,
+                jlong daddr_hi, jlong daddr_lo, jint dport,
+                jint uid, struct allowed *redirect);
+
+void put_verdict(const struct arguments *args, const struct decision *d, uint32_t generation);
+
+void pack_address(jint version, const void *addr, jlong *hi, jlong *lo);
+
+void get_packed_address(jint version, const char *addr, jlong *hi, jlong *lo);
 
 jobject create_packet(const struct arguments *args,
                       jint version,
@@ -550,12 +905,20 @@ jobject create_packet(const struct arguments *args,
 void account_usage(const struct arguments *args, jint version, jint protocol,
                    const char *daddr, jint dport, jint uid, jlong sent, jlong received);
 
+void open_pcap(const char *name);
+
+void close_pcap();
+
 void write_pcap_hdr();
 
-void write_pcap_rec(const uint8_t *buffer, size_t len);
+void write_pcap_rec(const uint8_t *buffer, size_t len, jint uid);
 
 void write_pcap(const void *ptr, size_t len);
 
+void start_pcap_writer();
+
+void stop_pcap_writer();
+
 int compare_u32(uint32_t seq1, uint32_t seq2);
 
 const char *strstate(const int state);
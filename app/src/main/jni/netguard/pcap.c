@@ -22,8 +22,104 @@
 FILE *pcap_file = NULL;
 size_t pcap_record_size = 64;
 long pcap_file_size = 2 * 1024 * 1024;
+int pcap_files = 1;
+int pcap_ng = 0;
+static char pcap_name[PATH_MAX];
+pthread_mutex_t pcap_lock = PTHREAD_MUTEX_INITIALIZER;
+struct pcap_ring pcap_ring = {
+        .lock = PTHREAD_MUTEX_INITIALIZER,
+        .cond = PTHREAD_COND_INITIALIZER
+};
+
+// Called with the pcap lock held
+void open_pcap(const char *name) {
+    if (name != pcap_name) {
+        strncpy(pcap_name, name, sizeof(pcap_name) - 1);
+        pcap_name[sizeof(pcap_name) - 1] = 0;
+    }
+
+    pcap_file = fopen(pcap_name, "ab+");
+    if (pcap_file == NULL)
+        log_android(ANDROID_LOG_ERROR, "PCAP fopen error %d: %s", errno, strerror(errno));
+    else {
+        long size = ftell(pcap_file);
+        if (size == 0) {
+            log_android(ANDROID_LOG_WARN, "PCAP initialize");
+            write_pcap_hdr();
+        } else
+            log_android(ANDROID_LOG_WARN, "PCAP current size %ld", size);
+    }
+}
+
+// Called with the pcap lock held
+void close_pcap() {
+    if (fsync(fileno(pcap_file)))
+        log_android(ANDROID_LOG_ERROR, "PCAP fsync error %d: %s", errno, strerror(errno));
+
+    if (fclose(pcap_file))
+        log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
+
+    pcap_file = NULL;
+}
+
+// Move name to name.1, name.1 to name.2, etc, the oldest file is overwritten
+static void rotate_pcap() {
+    char from[PATH_MAX + 8];
+    char to[PATH_MAX + 8];
+
+    close_pcap();
+
+    for (int i = pcap_files - 1; i > 0; i--) {
+        int flen = (i == 1
+                    ? snprintf(from, sizeof(from), "%s", pcap_name)
+                    : snprintf(from, sizeof(from), "%s.%d", pcap_name, i - 1));
+        int tlen = snprintf(to, sizeof(to), "%s.%d", pcap_name, i);
+        if (flen < 0 || flen >= sizeof(from) || tlen < 0 || tlen >= sizeof(to)) {
+            log_android(ANDROID_LOG_ERROR, "PCAP rename %s.%d name too long", pcap_name, i);
+            continue;
+        }
+        if (rename(from, to) && errno != ENOENT)
+            log_android(ANDROID_LOG_ERROR, "PCAP rename %s error %d: %s",
+                        from, errno, strerror(errno));
+    }
+
+    log_android(ANDROID_LOG_WARN, "PCAP rotated %d files", pcap_files);
+
+    open_pcap(pcap_name);
+}
+
+static size_t get_pcap_hdr_size() {
+    if (pcap_ng)
+        return sizeof(struct pcapng_shb_s) + sizeof(struct pcapng_idb_s);
+    else
+        return sizeof(struct pcap_hdr_s);
+}
 
 void write_pcap_hdr() {
+    if (pcap_ng) {
+        uint8_t hdr[sizeof(struct pcapng_shb_s) + sizeof(struct pcapng_idb_s)];
+
+        struct pcapng_shb_s *shb = (struct pcapng_shb_s *) hdr;
+        shb->block_type = PCAPNG_SHB;
+        shb->block_length = sizeof(struct pcapng_shb_s);
+        shb->byte_order_magic = PCAPNG_MAGIC;
+        shb->version_major = 1;
+        shb->version_minor = 0;
+        shb->section_length = -1;
+        shb->block_length_trailer = sizeof(struct pcapng_shb_s);
+
+        struct pcapng_idb_s *idb = (struct pcapng_idb_s *) (hdr + sizeof(struct pcapng_shb_s));
+        idb->block_type = PCAPNG_IDB;
+        idb->block_length = sizeof(struct pcapng_idb_s);
+        idb->linktype = LINKTYPE_RAW;
+        idb->reserved = 0;
+        idb->snaplen = pcap_record_size;
+        idb->block_length_trailer = sizeof(struct pcapng_idb_s);
+
+        write_pcap(hdr, sizeof(hdr));
+        return;
+    }
+
     struct pcap_hdr_s pcap_hdr;
     pcap_hdr.magic_number = 0xa1b2c3d4;
     pcap_hdr.version_major = 2;
@@ -35,25 +131,231 @@ void write_pcap_hdr() {
     write_pcap(&pcap_hdr, sizeof(struct pcap_hdr_s));
 }
 
-void write_pcap_rec(const uint8_t *buffer, size_t length) {
+// Copy a record into the ring without locking or allocating, the writer thread writes it
+// A record is dropped if the ring is full, for example if the file system is slow
+void write_pcap_rec(const uint8_t *buffer, size_t length, jint uid) {
+    struct pcap_ring *ring = &pcap_ring;
+    if (!ring->enabled)
+        return;
+
     struct timespec ts;
     if (clock_gettime(CLOCK_REALTIME, &ts))
         log_android(ANDROID_LOG_ERROR, "clock_gettime error %d: %s", errno, strerror(errno));
 
     size_t plen = (length < pcap_record_size ? length : pcap_record_size);
-    size_t rlen = sizeof(struct pcaprec_hdr_s) + plen;
-    struct pcaprec_hdr_s *pcap_rec = ng_malloc(rlen, "pcap");
+    uint32_t rlen = (uint32_t) (sizeof(uint32_t) + sizeof(jint) + sizeof(struct pcaprec_hdr_s) + plen);
+    uint32_t slen = (rlen + 7) & ~7U;
+
+    // Reserve a slot, records do not wrap around the end of the ring
+    uint64_t head;
+    uint64_t used;
+    uint32_t pad;
+    do {
+        head = __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE);
+        uint64_t tail = __atomic_load_n(&ring->tail, __ATOMIC_ACQUIRE);
+        uint32_t off = (uint32_t) (head & (PCAP_RING - 1));
+        pad = (off + slen > PCAP_RING ? PCAP_RING - off : 0);
+        used = head + pad + slen - tail;
+        if (used > PCAP_RING) {
+            __sync_add_and_fetch(&ring->dropped, 1);
+            return;
+        }
+    } while (!__atomic_compare_exchange_n(&ring->head, &head, head + pad + slen,
+                                          0, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE));
+
+    if (pad)
+        __atomic_store_n((uint32_t *) (ring->buffer + (head & (PCAP_RING - 1))),
+                         PCAP_PAD | pad, __ATOMIC_RELEASE);
 
+    uint8_t *slot = ring->buffer + ((head + pad) & (PCAP_RING - 1));
+    *((jint *) (slot + sizeof(uint32_t))) = uid;
+    struct pcaprec_hdr_s *pcap_rec =
+            (struct pcaprec_hdr_s *) (slot + sizeof(uint32_t) + sizeof(jint));
     pcap_rec->ts_sec = (guint32_t) ts.tv_sec;
     pcap_rec->ts_usec = (guint32_t) (ts.tv_nsec / 1000);
     pcap_rec->incl_len = (guint32_t) plen;
     pcap_rec->orig_len = (guint32_t) length;
-
     memcpy(((uint8_t *) pcap_rec) + sizeof(struct pcaprec_hdr_s), buffer, plen);
 
-    write_pcap(pcap_rec, rlen);
+    // Publish the record
+    __atomic_store_n((uint32_t *) slot, rlen, __ATOMIC_RELEASE);
+
+    // Do not wait for the flush interval if the ring is filling up
+    if (used > PCAP_RING / 2)
+        pthread_cond_signal(&ring->cond);
+}
+
+// Enhanced packet block with the uid as comment, if known
+static size_t put_pcapng_rec(uint8_t *out, const struct pcaprec_hdr_s *pcap_rec, jint uid) {
+    size_t len = sizeof(struct pcapng_epb_s);
+    memcpy(out + len, ((uint8_t *) pcap_rec) + sizeof(struct pcaprec_hdr_s), pcap_rec->incl_len);
+    len += pcap_rec->incl_len;
+    while (len & 3)
+        out[len++] = 0;
+
+    if (uid >= 0) {
+        char comment[16];
+        int clen = snprintf(comment, sizeof(comment), "uid=%d", uid);
+
+        struct pcapng_opt_s *opt = (struct pcapng_opt_s *) (out + len);
+        opt->code = PCAPNG_OPT_COMMENT;
+        opt->length = (guint16_t) clen;
+        len += sizeof(struct pcapng_opt_s);
+        memcpy(out + len, comment, (size_t) clen);
+        len += clen;
+        while (len & 3)
+            out[len++] = 0;
+
+        opt = (struct pcapng_opt_s *) (out + len);
+        opt->code = PCAPNG_OPT_END;
+        opt->length = 0;
+        len += sizeof(struct pcapng_opt_s);
+    }
+
+    len += sizeof(guint32_t);
+
+    uint64_t ts = (uint64_t) pcap_rec->ts_sec * 1000000ULL + pcap_rec->ts_usec;
+    struct pcapng_epb_s *epb = (struct pcapng_epb_s *) out;
+    epb->block_type = PCAPNG_EPB;
+    epb->block_length = (guint32_t) len;
+    epb->interface_id = 0;
+    epb->ts_high = (guint32_t) (ts >> 32);
+    epb->ts_low = (guint32_t) ts;
+    epb->captured_len = pcap_rec->incl_len;
+    epb->original_len = pcap_rec->orig_len;
+    *((guint32_t *) (out + len - sizeof(guint32_t))) = (guint32_t) len;
+
+    return len;
+}
+
+// Write filled in slots in large writes, stops at the first slot not filled in yet
+static void drain_pcap(uint8_t *out) {
+    struct pcap_ring *ring = &pcap_ring;
+    uint64_t tail = ring->tail;
+    uint64_t head = __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE);
+    size_t count = 0;
+    jlong records = 0;
+
+    while (tail < head) {
+        uint8_t *slot = ring->buffer + (tail & (PCAP_RING - 1));
+        uint32_t rlen = __atomic_load_n((uint32_t *) slot, __ATOMIC_ACQUIRE);
+        if (rlen == 0)
+            break;
+
+        uint32_t slen;
+        if (rlen & PCAP_PAD)
+            slen = rlen & ~PCAP_PAD;
+        else {
+            slen = (rlen + 7) & ~7U;
+            // The pcapng block is at most 64 bytes larger than the slot
+            if (count + rlen + 64 > PCAP_WRITE) {
+                if (pthread_mutex_lock(&pcap_lock))
+                    log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+                if (pcap_file != NULL)
+                    write_pcap(out, count);
+                if (pthread_mutex_unlock(&pcap_lock))
+                    log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+                count = 0;
+            }
+            jint uid = *((jint *) (slot + sizeof(uint32_t)));
+            struct pcaprec_hdr_s *pcap_rec =
+                    (struct pcaprec_hdr_s *) (slot + sizeof(uint32_t) + sizeof(jint));
+            if (pcap_ng)
+                count += put_pcapng_rec(out + count, pcap_rec, uid);
+            else {
+                size_t len = sizeof(struct pcaprec_hdr_s) + pcap_rec->incl_len;
+                memcpy(out + count, pcap_rec, len);
+                count += len;
+            }
+            records++;
+        }
+
+        // Slots can start anywhere, so zero the whole slot before releasing it
+        memset(slot, 0, slen);
+        tail += slen;
+        __atomic_store_n(&ring->tail, tail, __ATOMIC_RELEASE);
+    }
+
+    if (count > 0) {
+        if (pthread_mutex_lock(&pcap_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        if (pcap_file != NULL)
+            write_pcap(out, count);
+        if (pthread_mutex_unlock(&pcap_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+    }
+
+    ring->records += records;
+}
+
+static void *run_pcap_writer(void *data) {
+    struct pcap_ring *ring = &pcap_ring;
+    uint8_t *out = ng_malloc(2 * PCAP_WRITE, "pcap writer");
+
+    int stopping = 0;
+    while (!stopping) {
+        if (pthread_mutex_lock(&ring->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        if (!ring->stopping) {
+            struct timespec ts;
+            clock_gettime(CLOCK_REALTIME, &ts);
+            ts.tv_nsec += PCAP_FLUSH * 1000000L;
+            ts.tv_sec += ts.tv_nsec / 1000000000L;
+            ts.tv_nsec %= 1000000000L;
+            pthread_cond_timedwait(&ring->cond, &ring->lock, &ts);
+        }
+        stopping = ring->stopping;
+        if (pthread_mutex_unlock(&ring->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+        drain_pcap(out);
+    }
+
+    ng_free(out, __FILE__, __LINE__);
+    return NULL;
+}
+
+// The ring is kept when stopped, packet threads might still be filling in a slot
+void start_pcap_writer() {
+    struct pcap_ring *ring = &pcap_ring;
+    if (ring->started)
+        return;
+
+    if (ring->buffer == NULL)
+        ring->buffer = ng_calloc(1, PCAP_RING, "pcap ring");
+
+    ring->stopping = 0;
+    int err = pthread_create(&ring->thread, NULL, run_pcap_writer, NULL);
+    if (err)
+        log_android(ANDROID_LOG_ERROR, "pthread_create error %d: %s", err, strerror(err));
+    else {
+        ring->started = 1;
+        ring->enabled = 1;
+    }
+}
+
+// Writes the records in the ring
+void stop_pcap_writer() {
+    struct pcap_ring *ring = &pcap_ring;
+    if (!ring->started)
+        return;
+
+    ring->enabled = 0;
+
+    if (pthread_mutex_lock(&ring->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    ring->stopping = 1;
+    pthread_cond_signal(&ring->cond);
+    if (pthread_mutex_unlock(&ring->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    int err = pthread_join(ring->thread, NULL);
+    if (err)
+        log_android(ANDROID_LOG_ERROR, "pthread_join error %d: %s", err, strerror(err));
+    ring->started = 0;
 
-    ng_free(pcap_rec, __FILE__, __LINE__);
+    log_android(ANDROID_LOG_WARN, "PCAP records %lld dropped %lld",
+                ring->records, ring->dropped);
 }
 
 void write_pcap(const void *ptr, size_t len) {
@@ -63,13 +365,15 @@ void write_pcap(const void *ptr, size_t len) {
         long fsize = ftell(pcap_file);
         log_android(ANDROID_LOG_VERBOSE, "PCAP wrote %d @%ld", len, fsize);
 
-        if (fsize > pcap_file_size) {
+        if (fsize > pcap_file_size && pcap_files > 1)
+            rotate_pcap();
+        else if (fsize > pcap_file_size) {
             log_android(ANDROID_LOG_WARN, "PCAP truncate @%ld", fsize);
-            if (ftruncate(fileno(pcap_file), sizeof(struct pcap_hdr_s)))
+            if (ftruncate(fileno(pcap_file), get_pcap_hdr_size()))
                 log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
                             errno, strerror(errno));
             else {
-                if (!lseek(fileno(pcap_file), sizeof(struct pcap_hdr_s), SEEK_SET))
+                if (!lseek(fileno(pcap_file), get_pcap_hdr_size(), SEEK_SET))
                     log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
                                 errno, strerror(errno));
             }
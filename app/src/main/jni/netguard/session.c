@@ -19,8 +19,8 @@
 
 #include "netguard.h"
 
-void clear(struct context *ctx) {
-    struct ng_session *s = ctx->ng_session;
+static void clear_shard(struct shard *shard) {
+    struct ng_session *s = shard->ng_session;
     while (s != NULL) {
         if (s->socket >= 0 && close(s->socket))
             log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
@@ -31,7 +31,351 @@ void clear(struct context *ctx) {
         s = s->next;
         ng_free(p, __FILE__, __LINE__);
     }
-    ctx->ng_session = NULL;
+    shard->ng_session = NULL;
+    memset(shard->ng_hash, 0, sizeof(shard->ng_hash));
+    shard->ng_dirty = NULL;
+    memset(shard->ng_timer, 0, sizeof(shard->ng_timer));
+    memset(shard->ng_timer_min, 0, sizeof(shard->ng_timer_min));
+    shard->ng_timer_time = 0;
+    shard->ng_scale = 0;
+    shard->isessions = 0;
+    shard->usessions = 0;
+    shard->tsessions = 0;
+}
+
+void clear(struct context *ctx) {
+    for (int i = 0; i < SHARD_MAX; i++)
+        clear_shard(&ctx->shard[i]);
+}
+
+// Always in the same order to prevent deadlocks
+void lock_shards(struct context *ctx) {
+    for (int i = 0; i < SHARD_MAX; i++)
+        if (pthread_mutex_lock(&ctx->shard[i].lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+}
+
+void unlock_shards(struct context *ctx) {
+    for (int i = SHARD_MAX - 1; i >= 0; i--)
+        if (pthread_mutex_unlock(&ctx->shard[i].lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+// Sessions are kept in a list for iteration and in a hash table for lookups by flow
+// A bucket is searched by the same conditions as the list was before
+
+static uint32_t hash_flow(uint8_t protocol, int version,
+                          const void *saddr, __be16 sport,
+                          const void *daddr, __be16 dport) {
+    // FNV-1a
+    uint32_t h = 2166136261U;
+    const uint8_t *s = saddr;
+    const uint8_t *d = daddr;
+    int len = (version == 4 ? 4 : 16);
+    for (int i = 0; i < len; i++) {
+        h = (h ^ s[i]) * 16777619U;
+        h = (h ^ d[i]) * 16777619U;
+    }
+    h = (h ^ protocol) * 16777619U;
+    h = (h ^ (sport & 0xFF)) * 16777619U;
+    h = (h ^ (sport >> 8)) * 16777619U;
+    h = (h ^ (dport & 0xFF)) * 16777619U;
+    h = (h ^ (dport >> 8)) * 16777619U;
+    return h & (SESSION_HASH - 1);
+}
+
+static uint32_t hash_session(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return hash_flow(s->protocol, s->icmp.version,
+                         &s->icmp.saddr, 0, &s->icmp.daddr, 0);
+    else if (s->protocol == IPPROTO_UDP)
+        return hash_flow(s->protocol, s->udp.version,
+                         &s->udp.saddr, s->udp.source, &s->udp.daddr, s->udp.dest);
+    else
+        return hash_flow(s->protocol, s->tcp.version,
+                         &s->tcp.saddr, s->tcp.source, &s->tcp.daddr, s->tcp.dest);
+}
+
+struct ng_session *get_session_bucket(const struct shard *shard,
+                                      uint8_t protocol, int version,
+                                      const void *saddr, __be16 sport,
+                                      const void *daddr, __be16 dport) {
+    return shard->ng_hash[hash_flow(protocol, version, saddr, sport, daddr, dport)];
+}
+
+void add_session(struct shard *shard, struct ng_session *s) {
+    s->prev = NULL;
+    s->next = shard->ng_session;
+    if (s->next != NULL)
+        s->next->prev = s;
+    shard->ng_session = s;
+
+    uint32_t h = hash_session(s);
+    s->hnext = shard->ng_hash[h];
+    shard->ng_hash[h] = s;
+
+    s->tnext = NULL;
+    s->tprev = NULL;
+    s->deadline = 0;
+    s->timer = -1;
+    s->dirty = 0;
+    s->active = 0;
+    s->recheck = 0;
+    touch_session(shard, s);
+}
+
+static void unhash_session(struct shard *shard, struct ng_session *s) {
+    struct ng_session **p = &shard->ng_hash[hash_session(s)];
+    while (*p != NULL && *p != s)
+        p = &(*p)->hnext;
+    if (*p == NULL)
+        log_android(ANDROID_LOG_ERROR, "Session not hashed protocol %d", s->protocol);
+    else
+        *p = s->hnext;
+}
+
+// Sessions are scheduled on a timing wheel with one slot per second at their next deadline,
+// so only sessions which might have timed out are checked instead of all sessions
+// Deadlines beyond the wheel size are kept in the slot and skipped until due
+
+static int is_session_active(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return !s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return (s->udp.state == UDP_ACTIVE);
+    else
+        return (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE);
+}
+
+static void count_session(struct shard *shard, struct ng_session *s, int active) {
+    int delta = active - s->active;
+    if (delta == 0)
+        return;
+    s->active = (uint8_t) active;
+
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        shard->isessions += delta;
+    else if (s->protocol == IPPROTO_UDP)
+        shard->usessions += delta;
+    else
+        shard->tsessions += delta;
+}
+
+int get_sessions(const struct shard *shard) {
+    return shard->isessions + shard->usessions + shard->tsessions;
+}
+
+// The time check_*_session will do something, a time in the past if right away
+static time_t get_session_deadline(const struct ng_session *s, int sessions, int maxsessions) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        if (s->icmp.stop)
+            return s->icmp.time;
+        return s->icmp.time + get_icmp_timeout(&s->icmp, sessions, maxsessions) + 1;
+
+    } else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state == UDP_ACTIVE)
+            return s->udp.time + get_udp_timeout(&s->udp, sessions, maxsessions) + 1;
+        else if (s->udp.state == UDP_FINISHING ||
+                 (s->udp.state == UDP_CLOSED && (s->udp.sent || s->udp.received)))
+            return s->udp.time;
+        else
+            return s->udp.time + UDP_KEEP_TIMEOUT + 1;
+
+    } else {
+        if (s->tcp.state == TCP_CLOSING ||
+            (s->tcp.state == TCP_CLOSE && (s->tcp.sent || s->tcp.received)))
+            return s->tcp.time;
+        else if (s->tcp.state == TCP_CLOSE)
+            return s->tcp.time + TCP_KEEP_TIMEOUT + 1;
+        else
+            return s->tcp.time + get_tcp_timeout(&s->tcp, sessions, maxsessions) + 1;
+    }
+}
+
+static void unschedule_session(struct shard *shard, struct ng_session *s) {
+    if (s->timer < 0)
+        return;
+
+    if (s->tprev == NULL)
+        shard->ng_timer[s->timer] = s->tnext;
+    else
+        s->tprev->tnext = s->tnext;
+    if (s->tnext != NULL)
+        s->tnext->tprev = s->tprev;
+
+    s->tnext = NULL;
+    s->tprev = NULL;
+    s->timer = -1;
+}
+
+static void schedule_session(struct shard *shard, struct ng_session *s, time_t deadline) {
+    unschedule_session(shard, s);
+
+    // Past deadlines go into the next slot to check
+    time_t t = (deadline < shard->ng_timer_time ? shard->ng_timer_time : deadline);
+    int slot = (int) (t % SESSION_WHEEL);
+
+    s->deadline = deadline;
+    s->timer = slot;
+    s->tprev = NULL;
+    s->tnext = shard->ng_timer[slot];
+    if (s->tnext != NULL)
+        s->tnext->tprev = s;
+    shard->ng_timer[slot] = s;
+
+    if (shard->ng_timer_min[slot] == 0 || deadline < shard->ng_timer_min[slot])
+        shard->ng_timer_min[slot] = deadline;
+}
+
+// Mark a session for updating its count, epoll events and deadline
+void touch_session(struct shard *shard, struct ng_session *s) {
+    if (s->dirty)
+        return;
+    s->dirty = 1;
+    s->dprev = NULL;
+    s->dnext = shard->ng_dirty;
+    if (s->dnext != NULL)
+        s->dnext->dprev = s;
+    shard->ng_dirty = s;
+}
+
+static void untouch_session(struct shard *shard, struct ng_session *s) {
+    if (!s->dirty)
+        return;
+    s->dirty = 0;
+    if (s->dprev == NULL)
+        shard->ng_dirty = s->dnext;
+    else
+        s->dprev->dnext = s->dnext;
+    if (s->dnext != NULL)
+        s->dnext->dprev = s->dprev;
+}
+
+// Unlink a session, the caller frees it
+void remove_session(struct shard *shard, struct ng_session *s) {
+    if (s->prev == NULL)
+        shard->ng_session = s->next;
+    else
+        s->prev->next = s->next;
+    if (s->next != NULL)
+        s->next->prev = s->prev;
+
+    unhash_session(shard, s);
+    unschedule_session(shard, s);
+    untouch_session(shard, s);
+    count_session(shard, s, 0);
+}
+
+// Update sessions changed since the previous loop, returns if a recheck is needed
+static int update_sessions(const struct arguments *args, int epoll_fd, int maxsessions) {
+    struct shard *shard = args->shard;
+    int recheck = 0;
+
+    struct ng_session *dirty = shard->ng_dirty;
+    shard->ng_dirty = NULL;
+
+    for (struct ng_session *s = dirty; s != NULL; s = s->dnext) {
+        s->dirty = 0;
+        s->recheck = 0;
+        if (s->protocol == IPPROTO_TCP && s->socket >= 0)
+            s->recheck = (uint8_t) monitor_tcp_session(args, s, epoll_fd);
+        count_session(shard, s, is_session_active(s));
+    }
+
+    // Timeouts get shorter with more sessions, so reschedule all sessions then
+    int sessions = get_sessions(shard);
+    int scale = 100 - sessions * 100 / maxsessions;
+    int all = (scale < shard->ng_scale);
+    if (all)
+        for (struct ng_session *s = shard->ng_session; s != NULL; s = s->next)
+            schedule_session(shard, s, get_session_deadline(s, sessions, maxsessions));
+    shard->ng_scale = scale;
+
+    struct ng_session *s = dirty;
+    while (s != NULL) {
+        struct ng_session *next = s->dnext;
+        if (!all)
+            schedule_session(shard, s, get_session_deadline(s, sessions, maxsessions));
+
+        // Keep monitoring sessions waiting for a window update
+        if (s->recheck) {
+            recheck = 1;
+            touch_session(shard, s);
+        }
+        s = next;
+    }
+
+    return recheck;
+}
+
+// Check the sessions of which the deadline passed
+static void check_sessions(const struct arguments *args, int sessions, int maxsessions) {
+    struct shard *shard = args->shard;
+    time_t now = time(NULL);
+
+    // Collect due sessions of the slots passed since the previous check
+    struct ng_session *due = NULL;
+    time_t t = shard->ng_timer_time;
+    if (t == 0 || now - t >= SESSION_WHEEL)
+        t = now - SESSION_WHEEL + 1;
+    for (; t <= now; t++) {
+        int slot = (int) (t % SESSION_WHEEL);
+        shard->ng_timer_min[slot] = 0;
+        struct ng_session *s = shard->ng_timer[slot];
+        while (s != NULL) {
+            struct ng_session *next = s->tnext;
+            if (s->deadline <= now) {
+                unschedule_session(shard, s);
+                s->tnext = due;
+                due = s;
+            } else if (shard->ng_timer_min[slot] == 0 || s->deadline < shard->ng_timer_min[slot])
+                shard->ng_timer_min[slot] = s->deadline;
+            s = next;
+        }
+    }
+    shard->ng_timer_time = now;
+
+    while (due != NULL) {
+        struct ng_session *s = due;
+        due = s->tnext;
+        s->tnext = NULL;
+
+        // Deadlines are not moved on activity, so check again
+        time_t deadline = get_session_deadline(s, sessions, maxsessions);
+        if (deadline > now) {
+            schedule_session(shard, s, deadline);
+            continue;
+        }
+
+        int del;
+        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+            del = check_icmp_session(args, s, sessions, maxsessions);
+        else if (s->protocol == IPPROTO_UDP)
+            del = check_udp_session(args, s, sessions, maxsessions);
+        else
+            del = check_tcp_session(args, s, sessions, maxsessions);
+
+        if (del) {
+            remove_session(shard, s);
+            if (s->protocol == IPPROTO_TCP)
+                clear_tcp_data(&s->tcp);
+            ng_free(s, __FILE__, __LINE__);
+        } else
+            touch_session(shard, s);
+    }
+}
+
+// Seconds until the earliest deadline, 0 if a session is due
+static int get_sessions_timeout(const struct shard *shard, time_t now) {
+    time_t earliest = 0;
+    for (int i = 0; i < SESSION_WHEEL; i++)
+        if (shard->ng_timer_min[i] != 0 &&
+            (earliest == 0 || shard->ng_timer_min[i] < earliest))
+            earliest = shard->ng_timer_min[i];
+
+    if (earliest == 0 || earliest - now > EPOLL_TIMEOUT)
+        return EPOLL_TIMEOUT;
+    return (earliest > now ? (int) (earliest - now) : 0);
 }
 
 void *handle_events(void *a) {
@@ -51,6 +395,18 @@ void *handle_events(void *a) {
                     rlim.rlim_cur, rlim.rlim_max, maxsessions);
     }
 
+    // Workers share the file limit
+    if (args->queue != NULL && args->ctx->shards > 1) {
+        maxsessions = maxsessions / args->ctx->shards;
+        if (maxsessions < 1)
+            maxsessions = 1;
+    }
+
+    // Buffer to decide on new flows in batches
+    init_decisions(args);
+    init_tun_pool(args);
+    init_udp_pool(args);
+
     // Terminate existing sessions not allowed anymore
     check_allowed(args);
 
@@ -62,23 +418,25 @@ void *handle_events(void *a) {
         args->ctx->stopping = 1;
     }
 
-    // Monitor stop events
+    // Monitor stop events, workers are woken up by the tun reader
     struct epoll_event ev_pipe;
     memset(&ev_pipe, 0, sizeof(struct epoll_event));
     ev_pipe.events = EPOLLIN | EPOLLERR;
     ev_pipe.data.ptr = &ev_pipe;
-    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->ctx->pipefds[0], &ev_pipe)) {
+    if (args->queue == NULL &&
+        epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->ctx->pipefds[0], &ev_pipe)) {
         log_android(ANDROID_LOG_ERROR, "epoll add pipe error %d: %s", errno, strerror(errno));
         report_exit(args, "epoll add pipe error %d: %s", errno, strerror(errno));
         args->ctx->stopping = 1;
     }
 
-    // Monitor tun events
+    // Monitor tun events, or queued packets of the tun for workers
     struct epoll_event ev_tun;
     memset(&ev_tun, 0, sizeof(struct epoll_event));
     ev_tun.events = EPOLLIN | EPOLLERR;
     ev_tun.data.ptr = NULL;
-    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->tun, &ev_tun)) {
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD,
+                  args->queue == NULL ? args->tun : args->queue->event, &ev_tun)) {
         log_android(ANDROID_LOG_ERROR, "epoll add tun error %d: %s", errno, strerror(errno));
         report_exit(args, "epoll add tun error %d: %s", errno, strerror(errno));
         args->ctx->stopping = 1;
@@ -92,80 +450,24 @@ void *handle_events(void *a) {
         int recheck = 0;
         int timeout = EPOLL_TIMEOUT;
 
-        // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
-        while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
-            }
-            s = s->next;
-        }
-        int sessions = isessions + usessions + tsessions;
+        // Update counts, epoll events and deadlines of changed sessions
+        recheck = update_sessions(args, epoll_fd, maxsessions);
+        int sessions = get_sessions(args->shard);
 
         // Check sessions
         long long ms = get_ms();
         if (ms - last_check > EPOLL_MIN_CHECK) {
             last_check = ms;
 
-            time_t now = time(NULL);
-            struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
-            while (s != NULL) {
-                int del = 0;
-                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                    del = check_icmp_session(args, s, sessions, maxsessions);
-                    if (!s->icmp.stop && !del) {
-                        int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_UDP) {
-                    del = check_udp_session(args, s, sessions, maxsessions);
-                    if (s->udp.state == UDP_ACTIVE && !del) {
-                        int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_TCP) {
-                    del = check_tcp_session(args, s, sessions, maxsessions);
-                    if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
-                        int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                }
+            check_sessions(args, sessions, maxsessions);
 
-                if (del) {
-                    if (sl == NULL)
-                        args->ctx->ng_session = s->next;
-                    else
-                        sl->next = s->next;
+            // Reschedule checked sessions
+            recheck = recheck | update_sessions(args, epoll_fd, maxsessions);
+            sessions = get_sessions(args->shard);
 
-                    struct ng_session *c = s;
-                    s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
-                        clear_tcp_data(&c->tcp);
-                    ng_free(c, __FILE__, __LINE__);
-                } else {
-                    sl = s;
-                    s = s->next;
-                }
-            }
+            timeout = get_sessions_timeout(args->shard, time(NULL));
+            if (timeout == 0)
+                recheck = 1;
         } else {
             recheck = 1;
             log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
@@ -173,7 +475,8 @@ void *handle_events(void *a) {
 
         log_android(ANDROID_LOG_DEBUG,
                     "sessions ICMP %d UDP %d TCP %d max %d/%d timeout %d recheck %d",
-                    isessions, usessions, tsessions, sessions, maxsessions, timeout, recheck);
+                    args->shard->isessions, args->shard->usessions, args->shard->tsessions,
+                    sessions, maxsessions, timeout, recheck);
 
         // Poll
         struct epoll_event ev[EPOLL_EVENTS];
@@ -198,7 +501,7 @@ void *handle_events(void *a) {
             log_android(ANDROID_LOG_DEBUG, "epoll timeout");
         else {
 
-            if (pthread_mutex_lock(&args->ctx->lock))
+            if (pthread_mutex_lock(&args->shard->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
             int error = 0;
@@ -222,13 +525,8 @@ void *handle_events(void *a) {
                                 (ev[i].events & EPOLLERR) != 0,
                                 (ev[i].events & EPOLLHUP) != 0);
 
-                    int count = 0;
-                    while (count < TUN_YIELD && !error && !args->ctx->stopping &&
-                           is_readable(args->tun)) {
-                        count++;
-                        if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
-                            error = 1;
-                    }
+                    if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
+                        error = 1;
 
                 } else {
                     // Check downstream
@@ -243,17 +541,13 @@ void *handle_events(void *a) {
                                 ((struct ng_session *) ev[i].data.ptr)->socket);
 
                     struct ng_session *session = (struct ng_session *) ev[i].data.ptr;
+                    touch_session(args->shard, session);
                     if (session->protocol == IPPROTO_ICMP ||
                         session->protocol == IPPROTO_ICMPV6)
                         check_icmp_socket(args, &ev[i]);
                     else if (session->protocol == IPPROTO_UDP) {
-                        int count = 0;
-                        while (count < UDP_YIELD && !args->ctx->stopping &&
-                               !(ev[i].events & EPOLLERR) && (ev[i].events & EPOLLIN) &&
-                               is_readable(session->socket)) {
-                            count++;
+                        if (!(ev[i].events & EPOLLERR) && (ev[i].events & EPOLLIN))
                             check_udp_socket(args, &ev[i]);
-                        }
                     } else if (session->protocol == IPPROTO_TCP)
                         check_tcp_socket(args, &ev[i], epoll_fd);
                 }
@@ -262,7 +556,7 @@ void *handle_events(void *a) {
                     break;
             }
 
-            if (pthread_mutex_unlock(&args->ctx->lock))
+            if (pthread_mutex_unlock(&args->shard->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
             if (error)
@@ -277,18 +571,61 @@ void *handle_events(void *a) {
 
     log_android(ANDROID_LOG_WARN, "Stopped events tun=%d", args->tun);
 
+    // Stop the tun reader and the other workers too
+    if (args->queue != NULL && !args->ctx->stopping) {
+        args->ctx->stopping = 1;
+        if (write(args->ctx->pipefds[1], "w", 1) < 0)
+            log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+    }
+
     // Cleanup
+    clear_udp_pool(args);
+    clear_tun_pool(args);
+    clear_decisions(args);
     ng_free(args, __FILE__, __LINE__);
 
     return NULL;
 }
 
+// Terminate the sessions collected in check_allowed which are not allowed anymore
+static void check_allowed_batch(const struct arguments *args,
+                                struct ng_session **session, int *decision, int count) {
+    decide(args);
+
+    for (int i = 0; i < count; i++) {
+        struct ng_session *s = session[i];
+        if (get_decision(args, decision[i], NULL))
+            continue;
+
+        touch_session(args->shard, s);
+
+        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+            s->icmp.stop = 1;
+            log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
+                        s->socket, s->icmp.uid);
+        } else if (s->protocol == IPPROTO_UDP) {
+            s->udp.state = UDP_FINISHING;
+            log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
+                        s->socket, s->udp.uid);
+        } else if (s->protocol == IPPROTO_TCP) {
+            write_rst(args, &s->tcp);
+            log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
+                        s->socket, s->tcp.uid);
+        }
+    }
+
+    args->decisions->count = 0;
+}
+
 void check_allowed(const struct arguments *args) {
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    struct ng_session *l = NULL;
-    struct ng_session *s = args->ctx->ng_session;
+    struct ng_session *session[DECISION_BATCH];
+    int decision[DECISION_BATCH];
+    int count = 0;
+
+    struct ng_session *s = args->shard->ng_session;
     while (s != NULL) {
         if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
             if (!s->icmp.stop) {
@@ -300,14 +637,10 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
+                session[count] = s;
+                decision[count++] = add_decision(
                         args, s->icmp.version, IPPROTO_ICMP, "",
-                        source, 0, dest, 0, "", s->icmp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
-                    s->icmp.stop = 1;
-                    log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
-                                s->socket, s->icmp.uid);
-                }
+                        source, 0, dest, 0, "", s->icmp.uid);
             }
 
         } else if (s->protocol == IPPROTO_UDP) {
@@ -320,24 +653,16 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
+                session[count] = s;
+                decision[count++] = add_decision(
                         args, s->udp.version, IPPROTO_UDP, "",
-                        source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
-                    s->udp.state = UDP_FINISHING;
-                    log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
-                                s->socket, s->udp.uid);
-                }
+                        source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid);
             } else if (s->udp.state == UDP_BLOCKED) {
                 log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
 
-                if (l == NULL)
-                    args->ctx->ng_session = s->next;
-                else
-                    l->next = s->next;
-
                 struct ng_session *c = s;
                 s = s->next;
+                remove_session(args->shard, c);
                 ng_free(c, __FILE__, __LINE__);
                 continue;
             }
@@ -352,20 +677,22 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
+                session[count] = s;
+                decision[count++] = add_decision(
                         args, s->tcp.version, IPPROTO_TCP, "",
-                        source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "", s->tcp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
-                    write_rst(args, &s->tcp);
-                    log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
-                                s->socket, s->tcp.uid);
-                }
+                        source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "", s->tcp.uid);
             }
 
         }
 
-        l = s;
+        if (count == DECISION_BATCH) {
+            check_allowed_batch(args, session, decision, count);
+            count = 0;
+        }
+
         s = s->next;
     }
+
+    check_allowed_batch(args, session, decision, count);
 }
 
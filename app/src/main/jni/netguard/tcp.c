@@ -27,12 +27,141 @@ extern char socks5_password[127 + 1];
 extern FILE *pcap_file;
 
 void clear_tcp_data(struct tcp_session *cur) {
-    struct segment *s = cur->forward;
-    while (s != NULL) {
-        struct segment *p = s;
-        s = s->next;
-        ng_free(p->data, __FILE__, __LINE__);
-        ng_free(p, __FILE__, __LINE__);
+    if (cur->forward.buffer != NULL)
+        ng_free(cur->forward.buffer, __FILE__, __LINE__);
+    if (cur->forward.range != NULL)
+        ng_free(cur->forward.range, __FILE__, __LINE__);
+    memset(&cur->forward, 0, sizeof(struct forward));
+}
+
+// Copy from or to the ring buffer, which might wrap
+static void copy_forward(struct forward *f, uint32_t seq, uint8_t *data, uint32_t len, int in) {
+    uint32_t off = seq & (f->size - 1);
+    uint32_t first = (len < f->size - off ? len : f->size - off);
+    if (in) {
+        memcpy(f->buffer + off, data, first);
+        memcpy(f->buffer, data + first, len - first);
+    } else {
+        memcpy(data, f->buffer + off, first);
+        memcpy(data + first, f->buffer, len - first);
+    }
+}
+
+// Make room for the sequence numbers up to end, starting at base
+static int grow_forward(struct forward *f, uint32_t base, uint32_t end) {
+    uint32_t need = end - base;
+    if (need <= f->size)
+        return 0;
+    if (need > TCP_FORWARD_MAX)
+        return -1;
+
+    uint32_t size = (f->size ? f->size : TCP_FORWARD_MIN);
+    while (size < need)
+        size <<= 1;
+
+    // Move the received ranges to their position in the larger buffer
+    struct forward g;
+    memcpy(&g, f, sizeof(struct forward));
+    g.size = size;
+    g.buffer = ng_malloc(size, "tcp forward");
+    for (int i = 0; i < f->count; i++) {
+        uint32_t off = f->range[i].start & (f->size - 1);
+        uint32_t len = f->range[i].end - f->range[i].start;
+        uint32_t first = (len < f->size - off ? len : f->size - off);
+        copy_forward(&g, f->range[i].start, f->buffer + off, first, 1);
+        copy_forward(&g, f->range[i].start + first, f->buffer, len - first, 1);
+    }
+
+    if (f->buffer != NULL)
+        ng_free(f->buffer, __FILE__, __LINE__);
+    f->buffer = g.buffer;
+    f->size = size;
+    return 0;
+}
+
+// Store data and merge its range with overlapping or adjacent ranges
+static void insert_forward(const char *session, struct tcp_session *cur,
+                           uint32_t seq, const uint8_t *data, uint16_t datalen, uint8_t psh) {
+    struct forward *f = &cur->forward;
+    uint32_t end = seq + datalen;
+
+    if (grow_forward(f, cur->remote_seq, end)) {
+        log_android(ANDROID_LOG_ERROR, "%s queue full %u..%u",
+                    session, seq - cur->remote_start, end - cur->remote_start);
+        return;
+    }
+
+    // First range not before the new range
+    int lo = 0;
+    int hi = f->count;
+    while (lo < hi) {
+        int mid = (lo + hi) / 2;
+        if (compare_u32(f->range[mid].end, seq) < 0)
+            lo = mid + 1;
+        else
+            hi = mid;
+    }
+
+    if (lo < f->count &&
+        compare_u32(f->range[lo].start, seq) <= 0 && compare_u32(f->range[lo].end, end) >= 0) {
+        log_android(ANDROID_LOG_WARN, "%s segment already queued %u..%u",
+                    session, seq - cur->remote_start, end - cur->remote_start);
+        return;
+    }
+
+    log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
+                session, seq - cur->remote_start, end - cur->remote_start);
+    copy_forward(f, seq, (uint8_t *) data, datalen, 1);
+
+    // Merge with the following ranges which overlap or touch
+    struct range merged;
+    merged.start = seq;
+    merged.end = end;
+    merged.psh = psh;
+    int last = lo;
+    while (last < f->count && compare_u32(f->range[last].start, end) <= 0) {
+        struct range *r = &f->range[last];
+        f->queued -= r->end - r->start;
+        if (compare_u32(r->start, merged.start) < 0)
+            merged.start = r->start;
+        if (compare_u32(r->end, merged.end) > 0) {
+            merged.end = r->end;
+            merged.psh = r->psh;
+        }
+        last++;
+    }
+    f->queued += merged.end - merged.start;
+
+    if (last == lo) {
+        // Insert
+        if (f->count == f->capacity) {
+            f->capacity = (f->capacity ? f->capacity * 2 : 4);
+            f->range = ng_realloc(f->range, f->capacity * sizeof(struct range), "tcp ranges");
+        }
+        memmove(&f->range[lo + 1], &f->range[lo], (f->count - lo) * sizeof(struct range));
+        f->count++;
+    } else if (last > lo + 1) {
+        // Replace merged ranges
+        memmove(&f->range[lo + 1], &f->range[last], (f->count - last) * sizeof(struct range));
+        f->count -= last - lo - 1;
+    }
+    f->range[lo] = merged;
+}
+
+// Remove forwarded data from the first range
+static void consume_forward(struct forward *f, uint32_t len) {
+    f->range[0].start += len;
+    f->queued -= len;
+    if (f->range[0].start == f->range[0].end) {
+        f->count--;
+        memmove(&f->range[0], &f->range[1], f->count * sizeof(struct range));
+    }
+
+    // Release a grown buffer when drained, the next insert allocates what is needed again
+    if (f->count == 0 && f->size > TCP_FORWARD_MIN) {
+        ng_free(f->buffer, __FILE__, __LINE__);
+        f->buffer = NULL;
+        f->size = 0;
     }
 }
 
@@ -143,10 +272,9 @@ int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int
         }
 
         // Check for outgoing data
-        if (s->tcp.forward != NULL) {
+        if (s->tcp.forward.count > 0) {
             uint32_t buffer_size = get_receive_buffer(s);
-            if (s->tcp.forward->seq == s->tcp.remote_seq &&
-                s->tcp.forward->len - s->tcp.forward->sent < buffer_size)
+            if (s->tcp.forward.range[0].start == s->tcp.remote_seq && buffer_size > 0)
                 events = events | EPOLLOUT;
             else
                 recheck = 1;
@@ -211,12 +339,7 @@ uint32_t get_receive_buffer(const struct ng_session *cur) {
 
 uint32_t get_receive_window(const struct ng_session *cur) {
     // Get data to forward size
-    uint32_t toforward = 0;
-    struct segment *q = cur->tcp.forward;
-    while (q != NULL) {
-        toforward += (q->len - q->sent);
-        q = q->next;
-    }
+    uint32_t toforward = cur->tcp.forward.queued;
 
     uint32_t window = get_receive_buffer(cur);
 
@@ -470,21 +593,36 @@ void check_tcp_socket(const struct arguments *args,
             if (ev->events & EPOLLOUT) {
                 // Forward data
                 uint32_t buffer_size = get_receive_buffer(s);
-                while (s->tcp.forward != NULL &&
-                       s->tcp.forward->seq == s->tcp.remote_seq &&
-                       s->tcp.forward->len - s->tcp.forward->sent < buffer_size) {
-                    log_android(ANDROID_LOG_DEBUG, "%s fwd %u...%u sent %u",
+                struct forward *f = &s->tcp.forward;
+                while (f->count > 0 &&
+                       f->range[0].start == s->tcp.remote_seq &&
+                       buffer_size > 0) {
+                    struct range *r = &f->range[0];
+                    uint32_t len = r->end - r->start;
+                    if (len > buffer_size)
+                        len = buffer_size;
+                    log_android(ANDROID_LOG_DEBUG, "%s fwd %u...%u len %u",
                                 session,
-                                s->tcp.forward->seq - s->tcp.remote_start,
-                                s->tcp.forward->seq + s->tcp.forward->len - s->tcp.remote_start,
-                                s->tcp.forward->sent);
-
-                    ssize_t sent = send(s->socket,
-                                        s->tcp.forward->data + s->tcp.forward->sent,
-                                        s->tcp.forward->len - s->tcp.forward->sent,
-                                        (unsigned int) (MSG_NOSIGNAL | (s->tcp.forward->psh
-                                                                        ? 0
-                                                                        : MSG_MORE)));
+                                r->start - s->tcp.remote_start,
+                                r->end - s->tcp.remote_start,
+                                len);
+
+                    // The data might wrap around the end of the buffer
+                    uint32_t off = r->start & (f->size - 1);
+                    struct iovec iov[2];
+                    iov[0].iov_base = f->buffer + off;
+                    iov[0].iov_len = (len < f->size - off ? len : f->size - off);
+                    iov[1].iov_base = f->buffer;
+                    iov[1].iov_len = len - iov[0].iov_len;
+
+                    struct msghdr msg;
+                    memset(&msg, 0, sizeof(struct msghdr));
+                    msg.msg_iov = iov;
+                    msg.msg_iovlen = (iov[1].iov_len ? 2 : 1);
+
+                    int more = (len < r->end - r->start || !r->psh);
+                    ssize_t sent = sendmsg(s->socket, &msg,
+                                           (unsigned int) (MSG_NOSIGNAL | (more ? MSG_MORE : 0)));
                     if (sent < 0) {
                         log_android(ANDROID_LOG_ERROR, "%s send error %d: %s",
                                     session, errno, strerror(errno));
@@ -499,34 +637,24 @@ void check_tcp_socket(const struct arguments *args,
                         fwd = 1;
                         buffer_size -= sent;
                         s->tcp.sent += sent;
-                        s->tcp.forward->sent += sent;
-
-                        if (s->tcp.forward->len == s->tcp.forward->sent) {
-                            s->tcp.remote_seq = s->tcp.forward->seq + s->tcp.forward->sent;
+                        s->tcp.remote_seq += sent;
+                        consume_forward(f, (uint32_t) sent);
 
-                            struct segment *p = s->tcp.forward;
-                            s->tcp.forward = s->tcp.forward->next;
-                            ng_free(p->data, __FILE__, __LINE__);
-                            ng_free(p, __FILE__, __LINE__);
-                        } else {
+                        if (sent < len) {
                             log_android(ANDROID_LOG_WARN,
                                         "%s partial send %u/%u",
-                                        session, s->tcp.forward->sent, s->tcp.forward->len);
+                                        session, sent, len);
                             break;
                         }
                     }
                 }
 
                 // Log data buffered
-                struct segment *seg = s->tcp.forward;
-                while (seg != NULL) {
-                    log_android(ANDROID_LOG_WARN, "%s queued %u...%u sent %u",
+                for (int i = 0; i < f->count; i++)
+                    log_android(ANDROID_LOG_WARN, "%s queued %u...%u",
                                 session,
-                                seg->seq - s->tcp.remote_start,
-                                seg->seq + seg->len - s->tcp.remote_start,
-                                seg->sent);
-                    seg = seg->next;
-                }
+                                f->range[i].start - s->tcp.remote_start,
+                                f->range[i].end - s->tcp.remote_start);
             }
 
             // Get receive window
@@ -539,7 +667,7 @@ void check_tcp_socket(const struct arguments *args,
 
             // Acknowledge forwarded data
             if (fwd || (prev == 0 && window > 0)) {
-                if (fwd && s->tcp.forward == NULL && s->tcp.state == TCP_CLOSE_WAIT) {
+                if (fwd && s->tcp.forward.count == 0 && s->tcp.state == TCP_CLOSE_WAIT) {
                     log_android(ANDROID_LOG_WARN, "%s confirm FIN", session);
                     s->tcp.remote_seq++; // remote FIN
                 }
@@ -569,7 +697,7 @@ void check_tcp_socket(const struct arguments *args,
                     } else if (bytes == 0) {
                         log_android(ANDROID_LOG_WARN, "%s recv eof", session);
 
-                        if (s->tcp.forward == NULL) {
+                        if (s->tcp.forward.count == 0) {
                             if (write_fin_ack(args, &s->tcp) >= 0) {
                                 log_android(ANDROID_LOG_WARN, "%s FIN sent", session);
                                 s->tcp.local_seq++; // local FIN
@@ -636,7 +764,10 @@ jboolean handle_tcp(const struct arguments *args,
     const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
+    struct ng_session *cur = get_session_bucket(
+            args->shard, IPPROTO_TCP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src, tcphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst, tcphdr->dest);
     while (cur != NULL &&
            !(cur->protocol == IPPROTO_TCP &&
              cur->tcp.version == version &&
@@ -645,7 +776,9 @@ jboolean handle_tcp(const struct arguments *args,
                              cur->tcp.daddr.ip4 == ip4->daddr
                            : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
                              memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+        cur = cur->hnext;
+    if (cur != NULL)
+        touch_session(args->shard, cur);
 
     // Prepare logging
     char source[INET6_ADDRSTRLEN + 1];
@@ -755,25 +888,20 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.dest = tcphdr->dest;
             s->tcp.state = TCP_LISTEN;
             s->tcp.socks5 = SOCKS5_NONE;
-            s->tcp.forward = NULL;
+            memset(&s->tcp.forward, 0, sizeof(struct forward));
             s->next = NULL;
 
             if (datalen) {
                 log_android(ANDROID_LOG_WARN, "%s SYN data", packet);
-                s->tcp.forward = ng_malloc(sizeof(struct segment), "syn segment");
-                s->tcp.forward->seq = s->tcp.remote_seq;
-                s->tcp.forward->len = datalen;
-                s->tcp.forward->sent = 0;
-                s->tcp.forward->psh = tcphdr->psh;
-                s->tcp.forward->data = ng_malloc(datalen, "syn segment data");
-                memcpy(s->tcp.forward->data, data, datalen);
-                s->tcp.forward->next = NULL;
+                insert_forward(packet, &s->tcp, s->tcp.remote_seq + 1, // after remote SYN
+                               data, datalen, (uint8_t) tcphdr->psh);
             }
 
             // Open socket
             s->socket = open_tcp_socket(args, &s->tcp, redirect);
             if (s->socket < 0) {
                 // Remote might retry
+                clear_tcp_data(&s->tcp);
                 ng_free(s, __FILE__, __LINE__);
                 return 0;
             }
@@ -791,8 +919,7 @@ jboolean handle_tcp(const struct arguments *args,
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
                             errno, strerror(errno));
 
-            s->next = args->ctx->ng_session;
-            args->ctx->ng_session = s;
+            add_session(args->shard, s);
 
             if (!allowed) {
                 log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
@@ -880,7 +1007,7 @@ jboolean handle_tcp(const struct arguments *args,
                     } else if (tcphdr->fin /* +ACK */) {
                         if (cur->tcp.state == TCP_ESTABLISHED) {
                             log_android(ANDROID_LOG_WARN, "%s FIN received", session);
-                            if (cur->tcp.forward == NULL) {
+                            if (cur->tcp.forward.count == 0) {
                                 cur->tcp.remote_seq++; // remote FIN
                                 if (write_ack(args, &cur->tcp) >= 0)
                                     cur->tcp.state = TCP_CLOSE_WAIT;
@@ -979,59 +1106,19 @@ void queue_tcp(const struct arguments *args,
                const char *session, struct tcp_session *cur,
                const uint8_t *data, uint16_t datalen) {
     uint32_t seq = ntohl(tcphdr->seq);
-    if (compare_u32(seq, cur->remote_seq) < 0)
+    uint32_t end = seq + datalen;
+    if (compare_u32(end, cur->remote_seq) <= 0)
         log_android(ANDROID_LOG_WARN, "%s already forwarded %u..%u",
                     session,
-                    seq - cur->remote_start, seq + datalen - cur->remote_start);
+                    seq - cur->remote_start, end - cur->remote_start);
     else {
-        struct segment *p = NULL;
-        struct segment *s = cur->forward;
-        while (s != NULL && compare_u32(s->seq, seq) < 0) {
-            p = s;
-            s = s->next;
-        }
-
-        if (s == NULL || compare_u32(s->seq, seq) > 0) {
-            log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
-                        session,
-                        seq - cur->remote_start, seq + datalen - cur->remote_start);
-            struct segment *n = ng_malloc(sizeof(struct segment), "tcp segment");
-            n->seq = seq;
-            n->len = datalen;
-            n->sent = 0;
-            n->psh = tcphdr->psh;
-            n->data = ng_malloc(datalen, "tcp segment");
-            memcpy(n->data, data, datalen);
-            n->next = s;
-            if (p == NULL)
-                cur->forward = n;
-            else
-                p->next = n;
-        } else if (s != NULL && s->seq == seq) {
-            if (s->len == datalen)
-                log_android(ANDROID_LOG_WARN, "%s segment already queued %u..%u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start);
-            else if (s->len < datalen) {
-                log_android(ANDROID_LOG_WARN, "%s segment smaller %u..%u > %u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
-                            s->seq + datalen - cur->remote_start);
-                ng_free(s->data, __FILE__, __LINE__);
-                s->len = datalen;
-                s->data = ng_malloc(datalen, "tcp segment smaller");
-                memcpy(s->data, data, datalen);
-            } else {
-                log_android(ANDROID_LOG_ERROR, "%s segment larger %u..%u < %u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
-                            s->seq + datalen - cur->remote_start);
-                ng_free(s->data, __FILE__, __LINE__);
-                s->len = datalen;
-                s->data = ng_malloc(datalen, "tcp segment larger");
-                memcpy(s->data, data, datalen);
-            }
+        // Skip the part already forwarded
+        if (compare_u32(seq, cur->remote_seq) < 0) {
+            data += cur->remote_seq - seq;
+            datalen -= cur->remote_seq - seq;
+            seq = cur->remote_seq;
         }
+        insert_forward(session, cur, seq, data, datalen, (uint8_t) tcphdr->psh);
     }
 }
 
@@ -1306,7 +1393,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     // Write pcap record
     if (res >= 0) {
         if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
+            write_pcap_rec(buffer, (size_t) res, cur->uid);
     } else
         log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d error %d: %s",
                     (tcp->syn ? " SYN" : ""),
@@ -82,6 +82,30 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
     return 0;
 }
 
+void init_udp_pool(struct arguments *args) {
+    struct udp_pool *pool = ng_malloc(sizeof(struct udp_pool), "udp pool");
+    memset(pool, 0, sizeof(struct udp_pool));
+
+    // Large enough for the largest datagram of both IP versions
+    pool->size = UDP_HEADROOM + (UDP4_MAXMSG > UDP6_MAXMSG ? UDP4_MAXMSG : UDP6_MAXMSG);
+    pool->buffer = ng_malloc(UDP_YIELD * pool->size, "udp pool buffer");
+
+    args->udp_pool = pool;
+}
+
+void clear_udp_pool(struct arguments *args) {
+    struct udp_pool *pool = args->udp_pool;
+    if (pool == NULL)
+        return;
+
+    log_android(ANDROID_LOG_WARN, "UDP recvmmsg calls %lld datagrams %lld",
+                pool->calls, pool->datagrams);
+
+    ng_free(pool->buffer, __FILE__, __LINE__);
+    ng_free(pool, __FILE__, __LINE__);
+    args->udp_pool = NULL;
+}
+
 void check_udp_socket(const struct arguments *args, const struct epoll_event *ev) {
     struct ng_session *s = (struct ng_session *) ev->data.ptr;
 
@@ -104,26 +128,47 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
         if (ev->events & EPOLLIN) {
             s->udp.time = time(NULL);
 
-            uint8_t *buffer = ng_malloc(s->udp.mss, "udp recv");
-            ssize_t bytes = recv(s->socket, buffer, s->udp.mss, 0);
-            if (bytes < 0) {
+            // Receive a batch of datagrams after the headroom of the pool buffers
+            struct udp_pool *pool = args->udp_pool;
+            for (int i = 0; i < UDP_YIELD; i++) {
+                pool->iov[i].iov_base = pool->buffer + i * pool->size + UDP_HEADROOM;
+                pool->iov[i].iov_len = s->udp.mss;
+                memset(&pool->msg[i], 0, sizeof(struct mmsghdr));
+                pool->msg[i].msg_hdr.msg_iov = &pool->iov[i];
+                pool->msg[i].msg_hdr.msg_iovlen = 1;
+            }
+
+            int count = recvmmsg(s->socket, pool->msg, UDP_YIELD, MSG_DONTWAIT, NULL);
+            if (count < 0) {
                 // Socket error
-                log_android(ANDROID_LOG_WARN, "UDP recv error %d: %s",
-                            errno, strerror(errno));
+                if (errno != EAGAIN)
+                    log_android(ANDROID_LOG_WARN, "UDP recvmmsg error %d: %s",
+                                errno, strerror(errno));
 
                 if (errno != EINTR && errno != EAGAIN)
                     s->udp.state = UDP_FINISHING;
-            } else if (bytes == 0) {
-                log_android(ANDROID_LOG_WARN, "UDP recv eof");
-                s->udp.state = UDP_FINISHING;
+                return;
+            }
+
+            pool->calls++;
+            pool->datagrams += count;
+
+            char dest[INET6_ADDRSTRLEN + 1];
+            if (s->udp.version == 4)
+                inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
+            else
+                inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
+
+            for (int i = 0; i < count; i++) {
+                uint8_t *buffer = pool->iov[i].iov_base;
+                size_t bytes = pool->msg[i].msg_len;
+                if (bytes == 0) {
+                    log_android(ANDROID_LOG_WARN, "UDP recv eof");
+                    s->udp.state = UDP_FINISHING;
+                    break;
+                }
 
-            } else {
                 // Socket read data
-                char dest[INET6_ADDRSTRLEN + 1];
-                if (s->udp.version == 4)
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                else
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
                 log_android(ANDROID_LOG_INFO, "UDP recv bytes %d from %s/%u for tun",
                             bytes, dest, ntohs(s->udp.dest));
 
@@ -131,18 +176,18 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
 
                 // Process DNS response
                 if (ntohs(s->udp.dest) == 53)
-                    parse_dns_response(args, s, buffer, (size_t *) &bytes);
+                    parse_dns_response(args, s, buffer, &bytes);
 
-                // Forward to tun
-                if (write_udp(args, &s->udp, buffer, (size_t) bytes) < 0)
+                // Forward to tun, building the headers in the headroom
+                if (write_udp_headroom(args, &s->udp, buffer, bytes) < 0) {
                     s->udp.state = UDP_FINISHING;
-                else {
+                    break;
+                } else {
                     // Prevent too many open files
                     if (ntohs(s->udp.dest) == 53)
                         s->udp.state = UDP_FINISHING;
                 }
             }
-            ng_free(buffer, __FILE__, __LINE__);
         }
     }
 }
@@ -158,7 +203,10 @@ int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint
         return 1;
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
+    struct ng_session *cur = get_session_bucket(
+            args->shard, IPPROTO_UDP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src, udphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst, udphdr->dest);
     while (cur != NULL &&
            !(cur->protocol == IPPROTO_UDP &&
              cur->udp.version == version &&
@@ -167,7 +215,7 @@ int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint
                              cur->udp.daddr.ip4 == ip4->daddr
                            : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
                              memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+        cur = cur->hnext;
 
     return (cur != NULL);
 }
@@ -216,8 +264,7 @@ void block_udp(const struct arguments *args,
     s->udp.state = UDP_BLOCKED;
     s->socket = -1;
 
-    s->next = args->ctx->ng_session;
-    args->ctx->ng_session = s;
+    add_session(args->shard, s);
 }
 
 jboolean handle_udp(const struct arguments *args,
@@ -234,7 +281,10 @@ jboolean handle_udp(const struct arguments *args,
     const size_t datalen = length - (data - pkt);
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
+    struct ng_session *cur = get_session_bucket(
+            args->shard, IPPROTO_UDP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src, udphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst, udphdr->dest);
     while (cur != NULL &&
            !(cur->protocol == IPPROTO_UDP &&
              cur->udp.version == version &&
@@ -243,7 +293,9 @@ jboolean handle_udp(const struct arguments *args,
                              cur->udp.daddr.ip4 == ip4->daddr
                            : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
                              memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+        cur = cur->hnext;
+    if (cur != NULL)
+        touch_session(args->shard, cur);
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
@@ -313,8 +365,7 @@ jboolean handle_udp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add udp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->shard, s);
 
         cur = s;
     }
@@ -437,6 +488,17 @@ int open_udp_socket(const struct arguments *args,
 
 ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                   uint8_t *data, size_t datalen) {
+    uint8_t *buffer = ng_malloc(UDP_HEADROOM + datalen, "udp write");
+    if (datalen)
+        memcpy(buffer + UDP_HEADROOM, data, datalen);
+    ssize_t res = write_udp_headroom(args, cur, buffer + UDP_HEADROOM, datalen);
+    ng_free(buffer, __FILE__, __LINE__);
+    return res;
+}
+
+// The UDP_HEADROOM bytes in front of data are used to build the packet
+ssize_t write_udp_headroom(const struct arguments *args, const struct udp_session *cur,
+                           uint8_t *data, size_t datalen) {
     size_t len;
     u_int8_t *buffer;
     struct udphdr *udp;
@@ -447,11 +509,9 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     // Build packet
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write4");
+        buffer = data - sizeof(struct iphdr) - sizeof(struct udphdr);
         struct iphdr *ip4 = (struct iphdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct iphdr));
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr) + sizeof(struct udphdr), data, datalen);
 
         // Build IP4 header
         memset(ip4, 0, sizeof(struct iphdr));
@@ -477,11 +537,9 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write6");
+        buffer = data - sizeof(struct ip6_hdr) - sizeof(struct udphdr);
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct ip6_hdr));
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr) + sizeof(struct udphdr), data, datalen);
 
         // Build IP6 header
         memset(ip6, 0, sizeof(struct ip6_hdr));
@@ -534,12 +592,10 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     // Write PCAP record
     if (res >= 0) {
         if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
+            write_pcap_rec(buffer, (size_t) res, cur->uid);
     } else
         log_android(ANDROID_LOG_WARN, "UDP write error %d: %s", errno, strerror(errno));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
         return -1;
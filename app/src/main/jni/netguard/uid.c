@@ -0,0 +1,469 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2025 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Sockets are looked up by their local port, so the cache is hashed by the local port
+// The number of entries is fixed, the least recently used entry is replaced when full
+struct uid_cache uid_cache;
+
+static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+static uint32_t hash_uid(int version, int protocol, uint16_t sport) {
+    uint32_t h = ((uint32_t) sport << 16) | ((uint32_t) protocol << 8) | (uint32_t) version;
+    h ^= h >> 16;
+    h *= 0x85EBCA6BU;
+    h ^= h >> 13;
+    return h & (UID_CACHE - 1);
+}
+
+// Unbound and unconnected sockets have zero addresses and ports
+static int is_uid_cache(const struct uid_cache_entry *e, int version, int protocol,
+                        const void *saddr, uint16_t sport,
+                        const void *daddr, uint16_t dport) {
+    size_t len = (size_t) (version == 4 ? 4 : 16);
+    return (e->version == version &&
+            e->protocol == protocol &&
+            e->sport == sport &&
+            (e->dport == dport || e->dport == 0) &&
+            (memcmp(e->saddr, saddr, len) == 0 || memcmp(e->saddr, zero, len) == 0) &&
+            (memcmp(e->daddr, daddr, len) == 0 || memcmp(e->daddr, zero, len) == 0));
+}
+
+static void unlink_uid_cache(struct uid_cache_entry *e) {
+    if (e->prev == NULL)
+        uid_cache.head = e->next;
+    else
+        e->prev->next = e->next;
+    if (e->next == NULL)
+        uid_cache.tail = e->prev;
+    else
+        e->next->prev = e->prev;
+}
+
+static void link_uid_cache(struct uid_cache_entry *e) {
+    e->prev = NULL;
+    e->next = uid_cache.head;
+    if (e->next == NULL)
+        uid_cache.tail = e;
+    else
+        e->next->prev = e;
+    uid_cache.head = e;
+}
+
+static void remove_uid_cache(struct uid_cache_entry *e) {
+    struct uid_cache_entry **p = &uid_cache.hash[hash_uid(e->version, e->protocol, e->sport)];
+    while (*p != NULL && *p != e)
+        p = &(*p)->hnext;
+    if (*p != NULL)
+        *p = e->hnext;
+
+    unlink_uid_cache(e);
+
+    e->next = uid_cache.free;
+    uid_cache.free = e;
+}
+
+static struct uid_cache_entry *get_uid_cache(int version, int protocol,
+                                             const void *saddr, uint16_t sport,
+                                             const void *daddr, uint16_t dport,
+                                             long now) {
+    struct uid_cache_entry *e = uid_cache.hash[hash_uid(version, protocol, sport)];
+    while (e != NULL) {
+        struct uid_cache_entry *next = e->hnext;
+        if (now - e->time > UID_MAX_AGE)
+            remove_uid_cache(e);
+        else if (is_uid_cache(e, version, protocol, saddr, sport, daddr, dport)) {
+            unlink_uid_cache(e);
+            link_uid_cache(e);
+            return e;
+        }
+        e = next;
+    }
+
+    return NULL;
+}
+
+static void put_uid_cache(int version, int protocol,
+                          const void *saddr, uint16_t sport,
+                          const void *daddr, uint16_t dport,
+                          jint uid, long now) {
+    if (uid_cache.entry == NULL) {
+        uid_cache.entry = ng_calloc(UID_CACHE, sizeof(struct uid_cache_entry), "uid_cache");
+        for (int i = 0; i < UID_CACHE; i++) {
+            uid_cache.entry[i].next = uid_cache.free;
+            uid_cache.free = &uid_cache.entry[i];
+        }
+    }
+
+    // Update the same socket
+    size_t len = (size_t) (version == 4 ? 4 : 16);
+    uint32_t h = hash_uid(version, protocol, sport);
+    struct uid_cache_entry *e = uid_cache.hash[h];
+    while (e != NULL &&
+           !(e->version == version && e->protocol == protocol &&
+             e->sport == sport && e->dport == dport &&
+             memcmp(e->saddr, saddr, len) == 0 && memcmp(e->daddr, daddr, len) == 0))
+        e = e->hnext;
+
+    if (e == NULL) {
+        if (uid_cache.free == NULL) {
+            if (now - uid_cache.tail->time <= UID_MAX_AGE)
+                uid_cache.evictions++;
+            remove_uid_cache(uid_cache.tail);
+        }
+
+        e = uid_cache.free;
+        uid_cache.free = e->next;
+
+        e->version = (uint8_t) version;
+        e->protocol = (uint8_t) protocol;
+        memcpy(e->saddr, saddr, len);
+        e->sport = sport;
+        memcpy(e->daddr, daddr, len);
+        e->dport = dport;
+
+        e->hnext = uid_cache.hash[h];
+        uid_cache.hash[h] = e;
+    } else
+        unlink_uid_cache(e);
+
+    e->uid = uid;
+    e->time = now;
+    link_uid_cache(e);
+}
+
+// The cache is shared by the workers
+static pthread_mutex_t uid_lock = PTHREAD_MUTEX_INITIALIZER;
+
+jint get_uid(const int version, const int protocol,
+             const void *saddr, const uint16_t sport,
+             const void *daddr, const uint16_t dport) {
+    jint uid = -1;
+
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+    inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
+    inet_ntop(version == 4 ? AF_INET : AF_INET6, daddr, dest, sizeof(dest));
+
+    struct timeval time;
+    gettimeofday(&time, NULL);
+    long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
+
+    int8_t saddr128[16];
+    int8_t daddr128[16];
+    if (version == 4) {
+        memset(saddr128, 0, 10);
+        saddr128[10] = (uint8_t) 0xFF;
+        saddr128[11] = (uint8_t) 0xFF;
+        memcpy(saddr128 + 12, saddr, 4);
+
+        memset(daddr128, 0, 10);
+        daddr128[10] = (uint8_t) 0xFF;
+        daddr128[11] = (uint8_t) 0xFF;
+        memcpy(daddr128 + 12, daddr, 4);
+    }
+
+    if (pthread_mutex_lock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    // Check cache, IPv6 table first
+    struct uid_cache_entry *e = NULL;
+    if (version == 4)
+        e = get_uid_cache(6, protocol, saddr128, sport, daddr128, dport, now);
+    if (e == NULL)
+        e = get_uid_cache(version, protocol, saddr, sport, daddr, dport, now);
+
+    if (e != NULL) {
+        uid_cache.hits++;
+        uid = e->uid;
+    } else
+        uid_cache.misses++;
+
+    // Other workers should not wait for the kernel lookup
+    if (pthread_mutex_unlock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (e != NULL)
+        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
+                    version, protocol, source, sport, dest, dport, uid);
+    else {
+        // Check IPv6 table first
+        if (version == 4) {
+            uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport, source, dest, now);
+            log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
+                        version, protocol, source, sport, dest, dport, uid);
+        }
+
+        if (uid == -1) {
+            uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport, source, dest, now);
+            log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
+                        version, protocol, source, sport, dest, dport, uid);
+        }
+    }
+
+    if (uid == -1)
+        log_android(ANDROID_LOG_WARN, "uid v%d p%d %s/%u > %s/%u => not found",
+                    version, protocol, source, sport, dest, dport);
+    else if (uid >= 0)
+        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d",
+                    version, protocol, source, sport, dest, dport, uid);
+
+    return uid;
+}
+
+// https://man7.org/linux/man-pages/man7/sock_diag.7.html
+// Asking for one socket costs one system call, instead of parsing all sockets in /proc
+
+// The socket is shared by the workers, the lock keeps replies with their request
+static pthread_mutex_t diag_lock = PTHREAD_MUTEX_INITIALIZER;
+static int diag_socket = -1;
+static int diag_disabled = 0;
+static uint32_t diag_seq = 0;
+
+// Returns the uid, -1 if there is no such socket or on a transient error, -2 on error
+static jint query_uid_diag(int version, int protocol,
+                           const void *saddr, uint16_t sport,
+                           const void *daddr, uint16_t dport) {
+    if (diag_socket < 0) {
+        diag_socket = socket(AF_NETLINK, SOCK_DGRAM | SOCK_CLOEXEC, NETLINK_SOCK_DIAG);
+        if (diag_socket < 0) {
+            log_android(ANDROID_LOG_WARN, "sock_diag socket error %d: %s",
+                        errno, strerror(errno));
+            return -2;
+        }
+
+        struct timeval tv;
+        tv.tv_sec = 1;
+        tv.tv_usec = 0;
+        if (setsockopt(diag_socket, SOL_SOCKET, SO_RCVTIMEO, &tv, sizeof(tv)))
+            log_android(ANDROID_LOG_WARN, "sock_diag SO_RCVTIMEO error %d: %s",
+                        errno, strerror(errno));
+    }
+
+    struct {
+        struct nlmsghdr nlh;
+        struct inet_diag_req_v2 req;
+    } request;
+    memset(&request, 0, sizeof(request));
+    request.nlh.nlmsg_len = sizeof(request);
+    request.nlh.nlmsg_type = SOCK_DIAG_BY_FAMILY;
+    request.nlh.nlmsg_flags = NLM_F_REQUEST;
+    request.nlh.nlmsg_seq = ++diag_seq;
+    request.req.sdiag_family = (uint8_t) (version == 4 ? AF_INET : AF_INET6);
+    request.req.sdiag_protocol = (uint8_t) protocol;
+    request.req.idiag_states = (uint32_t) -1;
+    request.req.id.idiag_cookie[0] = INET_DIAG_NOCOOKIE;
+    request.req.id.idiag_cookie[1] = INET_DIAG_NOCOOKIE;
+
+    // The kernel swaps source and destination for UDP for historical reasons
+    size_t len = (size_t) (version == 4 ? 4 : 16);
+    int swap = (protocol == IPPROTO_UDP);
+    request.req.id.idiag_sport = htons(swap ? dport : sport);
+    request.req.id.idiag_dport = htons(swap ? sport : dport);
+    memcpy(request.req.id.idiag_src, swap ? daddr : saddr, len);
+    memcpy(request.req.id.idiag_dst, swap ? saddr : daddr, len);
+
+    struct sockaddr_nl nladdr;
+    memset(&nladdr, 0, sizeof(nladdr));
+    nladdr.nl_family = AF_NETLINK;
+    if (sendto(diag_socket, &request, sizeof(request), 0,
+               (struct sockaddr *) &nladdr, sizeof(nladdr)) < 0) {
+        log_android(ANDROID_LOG_WARN, "sock_diag send error %d: %s", errno, strerror(errno));
+        return (errno == EINTR || errno == EAGAIN ? -1 : -2);
+    }
+
+    // Skip replies to earlier requests which timed out
+    long buffer[8192 / sizeof(long)];
+    while (1) {
+        ssize_t length = recv(diag_socket, buffer, sizeof(buffer), 0);
+        if (length < 0) {
+            // A timeout or an interrupt does not mean sock_diag is unavailable
+            log_android(ANDROID_LOG_WARN, "sock_diag recv error %d: %s", errno, strerror(errno));
+            return (errno == EINTR || errno == EAGAIN ? -1 : -2);
+        }
+
+        struct nlmsghdr *nlh = (struct nlmsghdr *) buffer;
+        for (; NLMSG_OK(nlh, length); nlh = NLMSG_NEXT(nlh, length)) {
+            if (nlh->nlmsg_seq != request.nlh.nlmsg_seq)
+                continue;
+
+            if (nlh->nlmsg_type == NLMSG_ERROR) {
+                struct nlmsgerr *err = (struct nlmsgerr *) NLMSG_DATA(nlh);
+                if (err->error == -ENOENT)
+                    return -1;
+                log_android(ANDROID_LOG_WARN, "sock_diag error %d: %s",
+                            -err->error, strerror(-err->error));
+                return -2;
+            }
+
+            if (nlh->nlmsg_type == SOCK_DIAG_BY_FAMILY &&
+                nlh->nlmsg_len >= NLMSG_LENGTH(sizeof(struct inet_diag_msg)))
+                return (jint) ((struct inet_diag_msg *) NLMSG_DATA(nlh))->idiag_uid;
+
+            return -1;
+        }
+    }
+}
+
+// Returns the uid, -1 if there is no such socket, -2 if sock_diag is not available
+static jint get_uid_diag(int version, int protocol,
+                         const void *saddr, uint16_t sport,
+                         const void *daddr, uint16_t dport) {
+    if (pthread_mutex_lock(&diag_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    jint uid = -2;
+    if (!diag_disabled) {
+        uid = query_uid_diag(version, protocol, saddr, sport, daddr, dport);
+        if (uid == -2) {
+            diag_disabled = 1;
+            log_android(ANDROID_LOG_WARN, "sock_diag not available, scanning /proc");
+        }
+    }
+
+    if (pthread_mutex_unlock(&diag_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return uid;
+}
+
+static void lock_put_uid_cache(int version, int protocol,
+                               const void *saddr, uint16_t sport,
+                               const void *daddr, uint16_t dport,
+                               jint uid, long now) {
+    if (pthread_mutex_lock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    put_uid_cache(version, protocol, saddr, sport, daddr, dport, uid, now);
+    if (pthread_mutex_unlock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+void clear_uid_cache() {
+    log_android(ANDROID_LOG_WARN, "uid cache hits %lld misses %lld evictions %lld",
+                uid_cache.hits, uid_cache.misses, uid_cache.evictions);
+    if (uid_cache.entry != NULL)
+        ng_free(uid_cache.entry, __FILE__, __LINE__);
+    memset(&uid_cache, 0, sizeof(struct uid_cache));
+
+    if (diag_socket >= 0 && close(diag_socket))
+        log_android(ANDROID_LOG_ERROR, "sock_diag close error %d: %s", errno, strerror(errno));
+    diag_socket = -1;
+    diag_disabled = 0;
+}
+
+jint get_uid_sub(const int version, const int protocol,
+                 const void *saddr, const uint16_t sport,
+                 const void *daddr, const uint16_t dport,
+                 const char *source, const char *dest,
+                 long now) {
+    int ws = (version == 4 ? 1 : 4);
+
+    // NETLINK is not available on Android due to SELinux policies for most apps :-(
+    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
+    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+    if (protocol == IPPROTO_TCP || protocol == IPPROTO_UDP) {
+        jint uid = get_uid_diag(version, protocol, saddr, sport, daddr, dport);
+        if (uid >= 0)
+            lock_put_uid_cache(version, protocol, saddr, sport, daddr, dport, uid, now);
+        if (uid != -2)
+            return uid;
+    }
+
+    // Get proc file name
+    char *fn = NULL;
+    if (protocol == IPPROTO_ICMP && version == 4)
+        fn = "/proc/net/icmp";
+    else if (protocol == IPPROTO_ICMPV6 && version == 6)
+        fn = "/proc/net/icmp6";
+    else if (protocol == IPPROTO_TCP)
+        fn = (version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6");
+    else if (protocol == IPPROTO_UDP)
+        fn = (version == 4 ? "/proc/net/udp" : "/proc/net/udp6");
+    else
+        return -1;
+
+    // Open proc file
+    FILE *fd = fopen(fn, "r");
+    if (fd == NULL) {
+        log_android(ANDROID_LOG_ERROR, "fopen %s error %d: %s", fn, errno, strerror(errno));
+        return -2;
+    }
+
+    jint uid = -1;
+
+    char line[250];
+    int fields;
+
+    char shex[16 * 2 + 1];
+    uint8_t _saddr[16];
+    int _sport;
+
+    char dhex[16 * 2 + 1];
+    uint8_t _daddr[16];
+    int _dport;
+
+    jint _uid;
+
+    // Scan proc file
+    int l = 0;
+    *line = 0;
+    const char *fmt = (version == 4
+                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
+                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
+    while (fgets(line, sizeof(line), fd) != NULL) {
+        if (!l++)
+            continue;
+
+        fields = sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid);
+        if (fields == 5 && strlen(shex) == ws * 8 && strlen(dhex) == ws * 8) {
+            hex2bytes(shex, _saddr);
+            hex2bytes(dhex, _daddr);
+
+            for (int w = 0; w < ws; w++)
+                ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
+
+            for (int w = 0; w < ws; w++)
+                ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
+
+            if (_sport == sport &&
+                (_dport == dport || _dport == 0) &&
+                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
+                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
+                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
+                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
+                uid = _uid;
+
+            lock_put_uid_cache(version, protocol,
+                               _saddr, (uint16_t) _sport, _daddr, (uint16_t) _dport,
+                               _uid, now);
+        } else {
+            log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
+            if (fclose(fd))
+                log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s",
+                            fn, errno, strerror(errno));
+            return -2;
+        }
+    }
+
+    if (fclose(fd))
+        log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
+
+    return uid;
+}
@@ -0,0 +1,348 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2025 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// The thread calling jni_run reads the tun and dispatches packets to worker threads
+// Each worker runs its own event loop for the sessions of one shard,
+// so a busy session only delays the sessions of the same shard
+
+extern JavaVM *jvm;
+extern int max_tun_msg;
+extern FILE *pcap_file;
+
+// Another hash than for the session buckets,
+// else the sessions of a shard would use only part of the buckets
+static uint32_t hash_shard(const uint8_t *saddr, const uint8_t *daddr, int len,
+                           uint16_t sport, uint16_t dport) {
+    // Mix with the murmur3 finalizer
+    uint32_t h = 0;
+    for (int i = 0; i < len; i += 4) {
+        uint32_t s;
+        uint32_t d;
+        memcpy(&s, saddr + i, 4);
+        memcpy(&d, daddr + i, 4);
+        h = (h ^ s ^ d) * 0x9E3779B1U;
+    }
+    h ^= (uint32_t) (sport ^ dport);
+    h ^= h >> 16;
+    h *= 0x85EBCA6BU;
+    h ^= h >> 13;
+    h *= 0xC2B2AE35U;
+    h ^= h >> 16;
+    return h;
+}
+
+// Get the shard of the session of a packet, the same way for all packets of a flow
+// ICMP sessions are not identified by ports, other protocols do not have sessions
+static int get_shard(const uint8_t *pkt, size_t length, int shards) {
+    uint8_t version = (*pkt) >> 4;
+    uint8_t protocol;
+    const uint8_t *saddr;
+    const uint8_t *daddr;
+    size_t off;
+    int len;
+
+    if (version == 4) {
+        if (length < sizeof(struct iphdr))
+            return 0;
+        const struct iphdr *ip4hdr = (const struct iphdr *) pkt;
+        protocol = ip4hdr->protocol;
+        saddr = (const uint8_t *) &ip4hdr->saddr;
+        daddr = (const uint8_t *) &ip4hdr->daddr;
+        off = ip4hdr->ihl * 4;
+        len = 4;
+    } else if (version == 6) {
+        if (length < sizeof(struct ip6_hdr))
+            return 0;
+        const struct ip6_hdr *ip6hdr = (const struct ip6_hdr *) pkt;
+        saddr = (const uint8_t *) &ip6hdr->ip6_src;
+        daddr = (const uint8_t *) &ip6hdr->ip6_dst;
+        len = 16;
+
+        // Skip extension headers like parse_ip
+        off = sizeof(struct ip6_hdr);
+        protocol = ip6hdr->ip6_nxt;
+        if (!is_upper_layer(protocol)) {
+            const struct ip6_ext *ext = (const struct ip6_ext *) (pkt + off);
+            while (off + sizeof(struct ip6_ext) <= length &&
+                   is_lower_layer(ext->ip6e_nxt) && !is_upper_layer(protocol)) {
+                protocol = ext->ip6e_nxt;
+                off += (8 + ext->ip6e_len);
+                ext = (const struct ip6_ext *) (pkt + off);
+            }
+            if (!is_upper_layer(protocol)) {
+                off = sizeof(struct ip6_hdr);
+                protocol = ip6hdr->ip6_nxt;
+            }
+        }
+    } else
+        return 0;
+
+    uint16_t sport = 0;
+    uint16_t dport = 0;
+    if ((protocol == IPPROTO_UDP || protocol == IPPROTO_TCP) && off + 4 <= length) {
+        memcpy(&sport, pkt + off, 2);
+        memcpy(&dport, pkt + off + 2, 2);
+    }
+
+    return (int) (hash_shard(saddr, daddr, len, sport, dport) % (uint32_t) shards);
+}
+
+static void init_queue(struct tun_queue *queue, int capacity) {
+    if (pthread_mutex_init(&queue->lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    queue->mtu = get_mtu();
+    queue->capacity = capacity;
+    queue->head = 0;
+    queue->count = 0;
+    queue->buffer = ng_malloc(capacity * queue->mtu, "tun queue buffer");
+    queue->length = ng_malloc(capacity * sizeof(size_t), "tun queue length");
+    queue->event = eventfd(0, EFD_NONBLOCK);
+    if (queue->event < 0)
+        log_android(ANDROID_LOG_ERROR, "eventfd error %d: %s", errno, strerror(errno));
+}
+
+static void clear_queue(struct tun_queue *queue) {
+    if (queue->event >= 0 && close(queue->event))
+        log_android(ANDROID_LOG_ERROR, "Close event error %d: %s", errno, strerror(errno));
+    ng_free(queue->length, __FILE__, __LINE__);
+    ng_free(queue->buffer, __FILE__, __LINE__);
+    if (pthread_mutex_destroy(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+}
+
+static void signal_queue(struct tun_queue *queue) {
+    uint64_t value = 1;
+    if (write(queue->event, &value, sizeof(value)) < 0)
+        log_android(ANDROID_LOG_WARN, "Write event error %d: %s", errno, strerror(errno));
+}
+
+// Returns 1 if the worker needs to be signaled
+static int enqueue(struct context *ctx, struct tun_queue *queue,
+                   const uint8_t *pkt, size_t length) {
+    if (pthread_mutex_lock(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    int count = queue->count;
+    int head = queue->head;
+    if (pthread_mutex_unlock(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    // Like a full tun queue, TCP will retransmit
+    if (count >= queue->capacity) {
+        ctx->tun_dropped++;
+        log_android(ANDROID_LOG_WARN, "Worker queue full, dropping packet");
+        return 0;
+    }
+
+    // The worker does not use the free slots
+    int slot = (head + count) % queue->capacity;
+    memcpy(queue->buffer + slot * queue->mtu, pkt, length);
+    queue->length[slot] = length;
+
+    if (pthread_mutex_lock(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    queue->count++;
+    if (pthread_mutex_unlock(&queue->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return 1;
+}
+
+static void *run_worker(void *data) {
+    struct arguments *args = (struct arguments *) data;
+
+    JNIEnv *env;
+    jint rs = (*jvm)->AttachCurrentThread(jvm, &env, NULL);
+    if (rs != JNI_OK) {
+        log_android(ANDROID_LOG_ERROR, "AttachCurrentThread failed %d", rs);
+        args->ctx->stopping = 1;
+        if (write(args->ctx->pipefds[1], "w", 1) < 0)
+            log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+        ng_free(args, __FILE__, __LINE__);
+        return NULL;
+    }
+
+    args->env = env;
+    handle_events(args); // Frees args
+
+    rs = (*jvm)->DetachCurrentThread(jvm);
+    if (rs != JNI_OK)
+        log_android(ANDROID_LOG_ERROR, "DetachCurrentThread failed %d", rs);
+
+    return NULL;
+}
+
+// Read the tun until stopped, the arguments are freed
+void run_workers(struct arguments *args, int workers) {
+    struct context *ctx = args->ctx;
+
+    int batch = args->batch;
+    if (batch < 1)
+        batch = TUN_BATCH;
+    if (batch > TUN_BATCH_MAX)
+        batch = TUN_BATCH_MAX;
+
+    log_android(ANDROID_LOG_WARN, "Start workers %d tun=%d batch %d", workers, args->tun, batch);
+
+    // Local references are valid in this thread only
+    jobject instance = jniGlobalRef(args->env, args->instance);
+    ng_add_alloc(instance, "workers instance");
+
+    struct worker *worker = ng_calloc((size_t) workers, sizeof(struct worker), "workers");
+    int started = 0;
+    for (int i = 0; i < workers; i++) {
+        init_queue(&worker[i].queue, batch * TUN_QUEUE);
+        if (worker[i].queue.event < 0)
+            break;
+
+        struct arguments *wargs = ng_malloc(sizeof(struct arguments), "worker arguments");
+        memcpy(wargs, args, sizeof(struct arguments));
+        wargs->env = NULL;
+        wargs->instance = instance;
+        wargs->shard = &ctx->shard[i];
+        wargs->queue = &worker[i].queue;
+
+        int err = pthread_create(&worker[i].thread, NULL, run_worker, wargs);
+        if (err) {
+            log_android(ANDROID_LOG_ERROR, "pthread_create error %d: %s", err, strerror(err));
+            ng_free(wargs, __FILE__, __LINE__);
+            break;
+        }
+        started++;
+    }
+
+    if (started < workers) {
+        report_exit(args, "Starting workers failed");
+        ctx->stopping = 1;
+    }
+
+    uint8_t *buffer = ng_malloc(get_mtu(), "tun reader");
+    int *signal = ng_calloc((size_t) workers, sizeof(int), "tun reader signal");
+
+    struct pollfd fds[2];
+    fds[0].fd = args->tun;
+    fds[0].events = POLLIN;
+    fds[1].fd = ctx->pipefds[0];
+    fds[1].events = POLLIN;
+
+    while (!ctx->stopping) {
+        int ready = poll(fds, 2, -1);
+        if (ready < 0) {
+            if (errno == EINTR)
+                continue;
+            log_android(ANDROID_LOG_ERROR, "poll tun %d error %d: %s",
+                        args->tun, errno, strerror(errno));
+            report_exit(args, "poll tun %d error %d: %s", args->tun, errno, strerror(errno));
+            break;
+        }
+
+        if (fds[1].revents & POLLIN) {
+            uint8_t b[1];
+            if (read(ctx->pipefds[0], b, 1) < 0)
+                log_android(ANDROID_LOG_WARN, "Read pipe error %d: %s", errno, strerror(errno));
+            else
+                log_android(ANDROID_LOG_WARN, "Read pipe");
+            continue;
+        }
+
+        if (fds[0].revents & (POLLERR | POLLNVAL)) {
+            log_android(ANDROID_LOG_ERROR, "tun %d exception", args->tun);
+            report_exit(args, "tun %d exception", args->tun);
+            break;
+        }
+
+        if (!(fds[0].revents & POLLIN))
+            continue;
+
+        // The tun is blocking, so check if there is more to read after the first packet
+        int error = 0;
+        int count = 0;
+        while (count < batch && !ctx->stopping && (count == 0 || is_readable(args->tun))) {
+            ssize_t length = read(args->tun, buffer, get_mtu());
+            if (length < 0) {
+                log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
+                            args->tun, errno, strerror(errno));
+                if (errno != EINTR && errno != EAGAIN) {
+                    report_exit(args, "tun %d read error %d: %s",
+                                args->tun, errno, strerror(errno));
+                    error = 1;
+                }
+                break;
+            } else if (length > 0) {
+                count++;
+
+                if (pcap_file != NULL)
+                    write_pcap_rec(buffer, (size_t) length, -1);
+
+                if (length > max_tun_msg) {
+                    max_tun_msg = length;
+                    log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
+                }
+
+                int w = get_shard(buffer, (size_t) length, workers);
+                if (enqueue(ctx, &worker[w].queue, buffer, (size_t) length))
+                    signal[w] = 1;
+            } else {
+                log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
+                report_exit(args, "tun %d empty read", args->tun);
+                error = 1;
+                break;
+            }
+        }
+
+        ctx->tun_wakeups++;
+        ctx->tun_packets += count;
+
+        // Wake up each worker once per batch
+        for (int i = 0; i < workers; i++)
+            if (signal[i]) {
+                signal[i] = 0;
+                signal_queue(&worker[i].queue);
+            }
+
+        if (error)
+            break;
+    }
+
+    // Stop workers
+    ctx->stopping = 1;
+    for (int i = 0; i < started; i++)
+        signal_queue(&worker[i].queue);
+    for (int i = 0; i < started; i++) {
+        int err = pthread_join(worker[i].thread, NULL);
+        if (err)
+            log_android(ANDROID_LOG_ERROR, "pthread_join error %d: %s", err, strerror(err));
+    }
+
+    log_android(ANDROID_LOG_WARN, "Stopped workers %d tun=%d wakeups %lld packets %lld dropped %lld",
+                started, args->tun, ctx->tun_wakeups, ctx->tun_packets, ctx->tun_dropped);
+
+    for (int i = 0; i < workers; i++)
+        if (worker[i].queue.buffer != NULL)
+            clear_queue(&worker[i].queue);
+
+    ng_free(signal, __FILE__, __LINE__);
+    ng_free(buffer, __FILE__, __LINE__);
+    ng_free(worker, __FILE__, __LINE__);
+
+    (*args->env)->DeleteGlobalRef(args->env, instance);
+    ng_delete_alloc(instance, __FILE__, __LINE__);
+    ng_free(args, __FILE__, __LINE__);
+}
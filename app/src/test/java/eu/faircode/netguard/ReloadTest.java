@@ -0,0 +1,117 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2025 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertTrue;
+
+// The packet path reads the published rules snapshot and should never wait for a reload
+public class ReloadTest {
+    private static final long BOUND = 50; // milliseconds
+    private static final long RELOAD = 20 * BOUND; // milliseconds
+
+    private ServiceSinkhole service;
+    private Object lock;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new ServiceSinkhole();
+
+        Class<?> cls = Class.forName("eu.faircode.netguard.ServiceSinkhole$Options");
+        Constructor<?> constructor = cls.getDeclaredConstructor(SharedPreferences.class);
+        constructor.setAccessible(true);
+        Field options = ServiceSinkhole.class.getDeclaredField("options");
+        options.setAccessible(true);
+        options.set(service, constructor.newInstance(new TestPreferences().set("filter", true)));
+
+        Field field = ServiceSinkhole.class.getDeclaredField("lock");
+        field.setAccessible(true);
+        lock = field.get(service);
+    }
+
+    @Test
+    public void testLookupDuringReload() throws Throwable {
+        final Method prepareUidAllowed = ServiceSinkhole.class.getDeclaredMethod(
+                "prepareUidAllowed", List.class, List.class);
+        prepareUidAllowed.setAccessible(true);
+        Method isAddressAllowed = ServiceSinkhole.class.getDeclaredMethod("isAddressAllowed", Packet.class);
+        isAddressAllowed.setAccessible(true);
+
+        // Hold the lock for the whole reload while publishing new snapshots
+        final CountDownLatch started = new CountDownLatch(1);
+        final Throwable[] error = new Throwable[1];
+        Thread reload = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (lock) {
+                        started.countDown();
+                        long end = System.currentTimeMillis() + RELOAD;
+                        while (System.currentTimeMillis() < end) {
+                            prepareUidAllowed.invoke(service, new ArrayList<Rule>(), new ArrayList<Rule>());
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (Throwable ex) {
+                    error[0] = ex;
+                }
+            }
+        });
+        reload.start();
+        started.await();
+
+        long lookups = 0;
+        long max = 0;
+        while (reload.isAlive()) {
+            Packet packet = new Packet();
+            packet.version = 4;
+            packet.protocol = 6;
+            packet.flags = "S";
+            packet.daddr = "192.0.2.1";
+            packet.daddr_lo = 0xC0000201L;
+            packet.dport = 443;
+            packet.uid = 10000 + (int) (lookups % 100);
+
+            long start = System.nanoTime();
+            isAddressAllowed.invoke(service, packet);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed > max)
+                max = elapsed;
+            lookups++;
+        }
+        reload.join();
+
+        if (error[0] != null)
+            throw error[0];
+        assertTrue("lookups=" + lookups, lookups > 0);
+        assertTrue("max=" + max / 1000 + " us", max < BOUND * 1000 * 1000L);
+    }
+}